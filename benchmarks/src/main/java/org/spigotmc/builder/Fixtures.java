@@ -0,0 +1,237 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates the synthetic inputs for the benchmarks. Everything is derived
+ * from a fixed seed, so every run measures the same work.
+ */
+public class Fixtures
+{
+
+    /**
+     * Keeps the code under test from printing its progress and from filling
+     * the build report, for the current thread and the threads it starts.
+     *
+     * @return the stream to pass to {@link #restore}
+     */
+    public static PrintStream silence()
+    {
+        PrintStream out = System.out;
+        System.setOut( new PrintStream( new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+            }
+        } ) );
+        BuildReport.setReport( new AbstractList<BuildReport.Span>()
+        {
+            @Override
+            public boolean add(BuildReport.Span span)
+            {
+                return true;
+            }
+
+            @Override
+            public BuildReport.Span get(int index)
+            {
+                throw new IndexOutOfBoundsException();
+            }
+
+            @Override
+            public int size()
+            {
+                return 0;
+            }
+        } );
+        return out;
+    }
+
+    public static void restore(PrintStream out)
+    {
+        System.setOut( out );
+        BuildReport.setReport( null );
+    }
+
+    /**
+     * A decompiled looking NMS source of the given number of lines.
+     */
+    public static List<String> source(int lines)
+    {
+        Random random = new Random( lines );
+        List<String> source = new ArrayList<String>( lines );
+        source.add( "package net.minecraft.server;" );
+        source.add( "" );
+        source.add( "public class Generated {" );
+        while ( source.size() < lines - 1 )
+        {
+            int method = source.size();
+            source.add( "" );
+            source.add( "    public int method" + method + "(int var1, Entity var2) {" );
+            for ( int i = random.nextInt( 12 ); i >= 0; i-- )
+            {
+                source.add( "        var1 += this.field" + random.nextInt( 100 ) + " * " + random.nextInt( 1000 ) + ";" );
+            }
+            source.add( "        return var1;" );
+            source.add( "    }" );
+        }
+        source.add( "}" );
+        return source;
+    }
+
+    /**
+     * A unified diff against the source, in the format of the CraftBukkit
+     * nms-patches, with the given number of hunks spread over the file.
+     */
+    public static List<String> patch(List<String> source, int hunks)
+    {
+        List<String> patch = new ArrayList<String>();
+        patch.add( "--- ../work/decompile-XXXX/net/minecraft/server/Generated.java" );
+        patch.add( "+++ src/main/java/net/minecraft/server/Generated.java" );
+
+        int step = ( source.size() - 8 ) / hunks;
+        int added = 0;
+        for ( int hunk = 0; hunk < hunks; hunk++ )
+        {
+            // Three lines of context, one line replaced by two, three lines of context
+            int start = 1 + hunk * step;
+            patch.add( "@@ -" + start + ",7 +" + ( start + added ) + ",8 @@" );
+            for ( int i = 0; i < 3; i++ )
+            {
+                patch.add( " " + source.get( start - 1 + i ) );
+            }
+            patch.add( "-" + source.get( start + 2 ) );
+            patch.add( "+        // CraftBukkit start" );
+            patch.add( "+" + source.get( start + 2 ) + " // CraftBukkit end" );
+            for ( int i = 4; i < 7; i++ )
+            {
+                patch.add( " " + source.get( start - 1 + i ) );
+            }
+            added++;
+        }
+        return patch;
+    }
+
+    /**
+     * Writes a set of patches and the matching clean sources laid out like
+     * the nms-patches directory and the decompile directory.
+     */
+    public static void patchSet(File patchDir, File cleanDir, int files, int lines, int hunks) throws IOException
+    {
+        for ( int i = 0; i < files; i++ )
+        {
+            List<String> source = source( lines + i );
+            File clean = new File( cleanDir, "net/minecraft/server/Generated" + i + ".java" );
+            File patch = new File( patchDir, "Generated" + i + ".patch" );
+            write( source, clean );
+            write( patch( source, hunks ), patch );
+        }
+    }
+
+    private static void write(List<String> lines, File file) throws IOException
+    {
+        Files.createParentDirs( file );
+        StringBuilder out = new StringBuilder();
+        for ( String line : lines )
+        {
+            out.append( line ).append( '\n' );
+        }
+        Files.write( out, file, Charsets.UTF_8 );
+    }
+
+    /**
+     * Writes a jar with the given number of class-sized entries spread over a
+     * few packages. Every tenth entry is stored, the rest deflated, like the
+     * mixture in the vanilla server jar.
+     */
+    public static void jar(File jar, int entries) throws IOException
+    {
+        Random random = new Random( entries );
+        ZipOutputStream out = new ZipOutputStream( new FileOutputStream( jar ) );
+        try
+        {
+            for ( int i = 0; i < entries; i++ )
+            {
+                // Class files compress to about half their size
+                byte[] data = new byte[ 500 + random.nextInt( 8000 ) ];
+                for ( int j = 0; j < data.length; j++ )
+                {
+                    data[j] = (byte) ( ( j % 2 == 0 ) ? random.nextInt( 256 ) : j % 16 );
+                }
+
+                ZipEntry entry = new ZipEntry( ( ( i % 3 == 0 ) ? "net/minecraft/server/" : "org/bukkit/craftbukkit/libs/" + ( i % 7 ) + "/" ) + "C" + i + ".class" );
+                if ( i % 10 == 0 )
+                {
+                    CRC32 crc = new CRC32();
+                    crc.update( data );
+                    entry.setMethod( ZipEntry.STORED );
+                    entry.setSize( data.length );
+                    entry.setCrc( crc.getValue() );
+                }
+                out.putNextEntry( entry );
+                out.write( data );
+                out.closeEntry();
+            }
+        } finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a file of random bytes.
+     */
+    public static void random(File file, int size) throws IOException
+    {
+        byte[] data = new byte[ size ];
+        new Random( size ).nextBytes( data );
+        Files.write( data, file );
+    }
+
+    /**
+     * Maven style console output, a few megabytes of it.
+     */
+    public static byte[] mavenOutput(int lines)
+    {
+        Random random = new Random( lines );
+        StringBuilder out = new StringBuilder();
+        for ( int i = 0; i < lines; i++ )
+        {
+            switch ( random.nextInt( 4 ) )
+            {
+                case 0:
+                    out.append( "[INFO] Compiling " ).append( random.nextInt( 2000 ) ).append( " source files to /home/build/CraftBukkit/target/classes\n" );
+                    break;
+                case 1:
+                    out.append( "[WARNING] /home/build/CraftBukkit/src/main/java/net/minecraft/server/Entity" ).append( i ).append( ".java: Some input files use unchecked or unsafe operations.\n" );
+                    break;
+                case 2:
+                    out.append( "Downloading: https://repo.maven.apache.org/maven2/org/apache/maven/plugins/maven-plugin-" ).append( i ).append( ".pom\n" );
+                    break;
+                default:
+                    out.append( "\n" );
+                    break;
+            }
+        }
+        return out.toString().getBytes( Charsets.UTF_8 );
+    }
+}
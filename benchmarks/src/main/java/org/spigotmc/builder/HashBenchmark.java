@@ -0,0 +1,73 @@
+package org.spigotmc.builder;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The MD5 of a file through the {@link HashIndex}, as checkHash computes it
+ * for the vanilla jar: once for a file the index has not seen, which reads
+ * the whole file, and once for a file it knows, which only looks at its size
+ * and modification time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark
+{
+
+    @Param(
+    {
+        "1048576", "10485760"
+    })
+    public int size;
+    private File dir;
+    private File file;
+    private HashIndex index;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        dir = Files.createTempDir();
+        file = new File( dir, "hash.bin" );
+        Fixtures.random( file, size );
+        // Files modified just before they are hashed are hashed again every time
+        file.setLastModified( System.currentTimeMillis() - TimeUnit.HOURS.toMillis( 1 ) );
+        index = new HashIndex( new File( dir, "hashes.json" ) );
+        index.md5( file );
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        FileUtils.deleteQuietly( dir );
+    }
+
+    @Benchmark
+    public String unindexed() throws Exception
+    {
+        return new HashIndex( new File( dir, "none.json" ) ).md5( file );
+    }
+
+    @Benchmark
+    public String indexed() throws Exception
+    {
+        return index.md5( file );
+    }
+}
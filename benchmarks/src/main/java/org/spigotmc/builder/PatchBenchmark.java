@@ -0,0 +1,136 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import difflib.DiffUtils;
+import difflib.Patch;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and applying an nms-patch with DiffUtils, applying it with the
+ * {@link StreamingPatch} which replaced it, and the whole {@link PatchEngine}
+ * over a patch set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatchBenchmark
+{
+
+    @Param(
+    {
+        "2000", "10000"
+    })
+    public int lines;
+    @Param(
+    {
+        "20", "200"
+    })
+    public int hunks;
+    private List<String> source;
+    private List<String> patchLines;
+    private Patch patch;
+    private File dir;
+    private PrintStream out;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        out = Fixtures.silence();
+        source = Fixtures.source( lines );
+        patchLines = Fixtures.patch( source, hunks );
+        patch = DiffUtils.parseUnifiedDiff( patchLines );
+
+        dir = Files.createTempDir();
+        Files.write( Joiner.on( '\n' ).join( source ) + "\n", new File( dir, "source.java" ), Charsets.UTF_8 );
+        Files.write( Joiner.on( '\n' ).join( patchLines ) + "\n", new File( dir, "source.patch" ), Charsets.UTF_8 );
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        FileUtils.deleteQuietly( dir );
+        Fixtures.restore( out );
+    }
+
+    @Benchmark
+    public Patch parse()
+    {
+        return DiffUtils.parseUnifiedDiff( patchLines );
+    }
+
+    @Benchmark
+    public List<?> apply() throws Exception
+    {
+        return DiffUtils.patch( source, patch );
+    }
+
+    @Benchmark
+    public int stream() throws Exception
+    {
+        return new StreamingPatch( new File( dir, "source.patch" ) ).apply( new File( dir, "source.java" ), new File( dir, "source.out" ) );
+    }
+
+    @Benchmark
+    public int patchSet(PatchSet set) throws Exception
+    {
+        return new PatchEngine( new File( set.dir, "patches" ), new File( set.dir, "clean" ), new File( set.dir, "out" ), new File( set.dir, "manifest.json" ),
+                new File( set.dir, "backup" ), Runtime.getRuntime().availableProcessors() ).run();
+    }
+
+    /**
+     * A set of patches, only used by the benchmark which has to start over
+     * for every invocation.
+     */
+    @State(Scope.Benchmark)
+    public static class PatchSet
+    {
+
+        private File dir;
+
+        @Setup
+        public void setup(PatchBenchmark benchmark) throws Exception
+        {
+            dir = Files.createTempDir();
+            Fixtures.patchSet( new File( dir, "patches" ), new File( dir, "clean" ), 50, benchmark.lines, benchmark.hunks );
+        }
+
+        /**
+         * Forgets the manifest and the output, so every invocation applies
+         * all patches.
+         */
+        @Setup(Level.Invocation)
+        public void clean()
+        {
+            FileUtils.deleteQuietly( new File( dir, "out" ) );
+            new File( dir, "manifest.json" ).delete();
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            FileUtils.deleteQuietly( dir );
+        }
+    }
+}
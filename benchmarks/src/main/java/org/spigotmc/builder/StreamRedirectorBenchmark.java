@@ -0,0 +1,52 @@
+package org.spigotmc.builder;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Forwarding child process output, Maven style, to a stream that discards
+ * it, so only the cost of the redirector itself is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamRedirectorBenchmark
+{
+
+    @Param(
+    {
+        "100000"
+    })
+    public int lines;
+    private byte[] output;
+    private PrintStream sink;
+
+    @Setup
+    public void setup()
+    {
+        output = Fixtures.mavenOutput( lines );
+        sink = new PrintStream( new NullOutputStream() );
+    }
+
+    @Benchmark
+    public void redirect() throws Exception
+    {
+        new Builder.StreamRedirector( new ByteArrayInputStream( output ), sink ).call();
+    }
+}
@@ -0,0 +1,131 @@
+package org.spigotmc.builder;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builder.unzip on a generated jar, next to a plain sequential java.util.zip
+ * extraction as the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnzipBenchmark
+{
+
+    @Param(
+    {
+        "5000"
+    })
+    public int entries;
+    private File dir;
+    private File jar;
+    private PrintStream console;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        console = Fixtures.silence();
+        dir = Files.createTempDir();
+        jar = new File( dir, "generated.jar" );
+        Fixtures.jar( jar, entries );
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        FileUtils.deleteQuietly( dir );
+        Fixtures.restore( console );
+    }
+
+    @Benchmark
+    public void unzip(Output output) throws Exception
+    {
+        Builder.unzip( jar, output.dir );
+    }
+
+    @Benchmark
+    public void sequential(Output output) throws Exception
+    {
+        File out = output.dir;
+        ZipFile zip = new ZipFile( jar );
+        try
+        {
+            for ( Enumeration<? extends ZipEntry> it = zip.entries(); it.hasMoreElements(); )
+            {
+                ZipEntry entry = it.nextElement();
+                File outFile = new File( out, entry.getName() );
+                outFile.getParentFile().mkdirs();
+                InputStream is = zip.getInputStream( entry );
+                OutputStream os = new FileOutputStream( outFile );
+                try
+                {
+                    ByteStreams.copy( is, os );
+                } finally
+                {
+                    is.close();
+                    os.close();
+                }
+            }
+        } finally
+        {
+            zip.close();
+        }
+    }
+
+    /**
+     * The directory extracted to, emptied before every invocation.
+     */
+    @State(Scope.Benchmark)
+    public static class Output
+    {
+
+        private File parent;
+        private File dir;
+
+        @Setup
+        public void setup()
+        {
+            parent = Files.createTempDir();
+            dir = new File( parent, "out" );
+        }
+
+        @Setup(Level.Invocation)
+        public void clean()
+        {
+            FileUtils.deleteQuietly( dir );
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            FileUtils.deleteQuietly( parent );
+        }
+    }
+}
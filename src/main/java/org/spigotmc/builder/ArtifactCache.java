@@ -0,0 +1,397 @@
+package org.spigotmc.builder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Content addressed store for expensive intermediate artifacts such as the
+ * mapped jar and the decompiled sources. Every entry is a directory named
+ * after a hash of everything that went into it, so the cache may be shared by
+ * several checkouts. Entries are assembled in a temporary directory and
+ * renamed into place once complete, least recently used entries are evicted
+ * once the cache grows beyond its size limit.
+ * <p>
+ * Entries are handed out through a {@link Lease}, which keeps them from being
+ * evicted by this instance until the build using them is over. Other
+ * processes sharing the cache can not see these leases, so every use of an
+ * entry also touches it and entries used within the last two hours are never
+ * evicted by anyone. The cache may grow beyond its limit until they are
+ * older.
+ * <p>
+ * Looking up and touching an entry, moving a new one into place and eviction
+ * all hold a lock on the cache directory, which other processes sharing it
+ * honour too. An entry one process has found can therefore not be evicted by
+ * another before it is touched, and of two processes producing the same
+ * entry only the first one's is kept.
+ */
+@RequiredArgsConstructor
+public class ArtifactCache
+{
+
+    private static final String TMP_PREFIX = ".tmp-";
+    private static final String LOCK_FILE = ".lock";
+    /**
+     * A JVM may only hold one lock on a file, so instances in the same
+     * process take turns before asking for it.
+     */
+    private static final ReentrantLock LOCAL_LOCK = new ReentrantLock();
+    private static final long MIN_AGE = TimeUnit.HOURS.toMillis( 2 );
+    @Getter
+    private final File root;
+    private final long maxSize;
+    private final Map<String, Integer> inUse = new HashMap<String, Integer>();
+    private final Map<String, Object> locks = new HashMap<String, Object>();
+
+    public interface Producer
+    {
+
+        void produce(File target) throws Exception;
+    }
+
+    /**
+     * Starts a lease for a build, every entry it hands out stays in place
+     * until the lease is released.
+     */
+    public Lease lease()
+    {
+        return new Lease();
+    }
+
+    /**
+     * The entries used by one build.
+     */
+    public class Lease
+    {
+
+        private final Set<String> keys = new HashSet<String>();
+
+        /**
+         * Returns the entry for the given key, creating it through the
+         * producer if it does not exist yet. Builds sharing the cache wait for
+         * each other, so every entry is only produced once.
+         */
+        public File get(String key, Producer producer) throws Exception
+        {
+            use( key );
+            synchronized ( lock( key ) )
+            {
+                return get0( key, producer );
+            }
+        }
+
+        /**
+         * Returns the most recently used entry whose key starts with the
+         * given prefix, or null if there is none.
+         */
+        public File find(String prefix) throws IOException
+        {
+            RootLock lock = lockRoot();
+            try
+            {
+                File newest = find0( prefix );
+                if ( newest != null )
+                {
+                    use( newest.getName() );
+                    newest.setLastModified( System.currentTimeMillis() );
+                }
+                return newest;
+            } finally
+            {
+                lock.release();
+            }
+        }
+
+        private void use(String key)
+        {
+            synchronized ( inUse )
+            {
+                if ( keys.add( key ) )
+                {
+                    Integer count = inUse.get( key );
+                    inUse.put( key, ( count == null ) ? 1 : count + 1 );
+                }
+            }
+        }
+
+        /**
+         * Ends the lease, its entries may be evicted again.
+         */
+        public void release()
+        {
+            synchronized ( inUse )
+            {
+                for ( String key : keys )
+                {
+                    int count = inUse.get( key );
+                    if ( count == 1 )
+                    {
+                        inUse.remove( key );
+                    } else
+                    {
+                        inUse.put( key, count - 1 );
+                    }
+                }
+                keys.clear();
+            }
+        }
+    }
+
+    private File get0(String key, Producer producer) throws Exception
+    {
+        File entry = new File( root, key );
+
+        if ( touch( entry ) )
+        {
+            System.out.println( "Using cached " + entry );
+            return entry;
+        }
+
+        root.mkdirs();
+        File tmp = new File( root, TMP_PREFIX + key + "-" + UUID.randomUUID() );
+        tmp.mkdir();
+        try
+        {
+            producer.produce( tmp );
+            RootLock lock = lockRoot();
+            try
+            {
+                if ( entry.isDirectory() )
+                {
+                    // Another process sharing this cache finished the same entry first, keep theirs
+                    System.out.println( "Using cached " + entry + " produced by another build" );
+                } else if ( !tmp.renameTo( entry ) )
+                {
+                    throw new IOException( "Could not move " + tmp + " to " + entry );
+                }
+                entry.setLastModified( System.currentTimeMillis() );
+            } finally
+            {
+                lock.release();
+            }
+        } finally
+        {
+            FileUtils.deleteQuietly( tmp );
+        }
+
+        evict();
+        return entry;
+    }
+
+    /**
+     * Marks the entry as used if it exists, under the lock so it can not be
+     * evicted in between.
+     */
+    private boolean touch(File entry) throws IOException
+    {
+        RootLock lock = lockRoot();
+        try
+        {
+            return entry.isDirectory() && entry.setLastModified( System.currentTimeMillis() );
+        } finally
+        {
+            lock.release();
+        }
+    }
+
+    /**
+     * Locks the cache directory against every other instance, in this process
+     * and others. Must not be taken again before it is released.
+     */
+    private RootLock lockRoot() throws IOException
+    {
+        LOCAL_LOCK.lock();
+        boolean locked = false;
+        try
+        {
+            root.mkdirs();
+            RandomAccessFile file = new RandomAccessFile( new File( root, LOCK_FILE ), "rw" );
+            try
+            {
+                RootLock lock = new RootLock( file, file.getChannel().lock() );
+                locked = true;
+                return lock;
+            } finally
+            {
+                if ( !locked )
+                {
+                    file.close();
+                }
+            }
+        } finally
+        {
+            if ( !locked )
+            {
+                LOCAL_LOCK.unlock();
+            }
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class RootLock
+    {
+
+        private final RandomAccessFile file;
+        private final FileLock lock;
+
+        public void release() throws IOException
+        {
+            try
+            {
+                lock.release();
+                file.close();
+            } finally
+            {
+                LOCAL_LOCK.unlock();
+            }
+        }
+    }
+
+    private Object lock(String key)
+    {
+        synchronized ( locks )
+        {
+            Object lock = locks.get( key );
+            if ( lock == null )
+            {
+                lock = new Object();
+                locks.put( key, lock );
+            }
+            return lock;
+        }
+    }
+
+    private File find0(final String prefix)
+    {
+        File[] entries = root.listFiles( new FileFilter()
+        {
+            @Override
+            public boolean accept(File file)
+            {
+                return file.isDirectory() && file.getName().startsWith( prefix );
+            }
+        } );
+        File newest = null;
+        if ( entries != null )
+        {
+            for ( File entry : entries )
+            {
+                if ( newest == null || entry.lastModified() > newest.lastModified() )
+                {
+                    newest = entry;
+                }
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits its size
+     * limit. Leased entries and entries used recently are never evicted.
+     */
+    public void evict() throws IOException
+    {
+        List<File> doomed = new ArrayList<File>();
+        RootLock lock = lockRoot();
+        try
+        {
+            doom( doomed );
+        } finally
+        {
+            lock.release();
+        }
+        // Already out of the way, nobody else can find them any more
+        for ( File file : doomed )
+        {
+            FileUtils.deleteQuietly( file );
+        }
+    }
+
+    /**
+     * Moves the entries to evict out of the way, to be deleted once the lock
+     * is released.
+     */
+    private void doom(List<File> doomed)
+    {
+        File[] abandoned = root.listFiles( new FileFilter()
+        {
+            @Override
+            public boolean accept(File file)
+            {
+                return file.getName().startsWith( TMP_PREFIX ) && file.lastModified() < System.currentTimeMillis() - TimeUnit.DAYS.toMillis( 1 );
+            }
+        } );
+        if ( abandoned != null )
+        {
+            doomed.addAll( Arrays.asList( abandoned ) );
+        }
+
+        File[] entries = root.listFiles( new FileFilter()
+        {
+            @Override
+            public boolean accept(File file)
+            {
+                return file.isDirectory() && !file.getName().startsWith( TMP_PREFIX );
+            }
+        } );
+        if ( entries == null )
+        {
+            return;
+        }
+        Arrays.sort( entries, new Comparator<File>()
+        {
+            @Override
+            public int compare(File o1, File o2)
+            {
+                long diff = o1.lastModified() - o2.lastModified();
+                return ( diff < 0 ) ? -1 : ( ( diff > 0 ) ? 1 : 0 );
+            }
+        } );
+
+        long[] sizes = new long[ entries.length ];
+        long total = 0;
+        for ( int i = 0; i < entries.length; i++ )
+        {
+            sizes[i] = FileUtils.sizeOfDirectory( entries[i] );
+            total += sizes[i];
+        }
+
+        for ( int i = 0; i < entries.length && total > maxSize; i++ )
+        {
+            if ( entries[i].lastModified() > System.currentTimeMillis() - MIN_AGE )
+            {
+                // Possibly in use by another process, and so is everything after it
+                break;
+            }
+            // Move it out of the way first so nobody picks up a half deleted entry
+            File target = new File( root, TMP_PREFIX + entries[i].getName() + "-" + UUID.randomUUID() );
+            boolean moved;
+            synchronized ( inUse )
+            {
+                moved = !inUse.containsKey( entries[i].getName() ) && entries[i].renameTo( target );
+            }
+            if ( moved )
+            {
+                System.out.println( "Evicting cached " + entries[i] + " (" + FileUtils.byteCountToDisplaySize( sizes[i] ) + ")" );
+                doomed.add( target );
+                total -= sizes[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.spigotmc.builder;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Builds several versions in one run. The build info of every version is
+ * resolved before anything is built, so a typo fails the run right away.
+ * Every version is built in a directory of its own below the batch
+ * directory, all of them share one artifact cache and one set of mirrors.
+ * Versions built from the same BuildData produce the same mapped jar and
+ * decompiled sources, they are built one after another so the first of them
+ * produces these and the others take them from the cache. Versions with
+ * different BuildData are built in parallel. They all install Bukkit,
+ * CraftBukkit and the mapped server under the same SNAPSHOT coordinates, so
+ * every group of versions gets a local Maven repository of its own.
+ */
+@RequiredArgsConstructor
+public class BatchBuild
+{
+
+    private final List<String> versions;
+    private final int buildNumber;
+    private final File root;
+
+    public void run(int batchThreads, final int threads) throws Exception
+    {
+        Map<String, BuildInfo> resolved = new LinkedHashMap<String, BuildInfo>();
+        for ( String version : versions )
+        {
+            resolved.put( version, ( Builder.dev ) ? null : Build.resolveBuildInfo( version, buildNumber ) );
+        }
+
+        Map<String, List<String>> groups = new LinkedHashMap<String, List<String>>();
+        for ( Map.Entry<String, BuildInfo> entry : resolved.entrySet() )
+        {
+            String buildData = ( entry.getValue() == null ) ? "master" : entry.getValue().getRefs().getBuildData();
+            List<String> group = groups.get( buildData );
+            if ( group == null )
+            {
+                group = new ArrayList<String>();
+                groups.put( buildData, group );
+            }
+            group.add( entry.getKey() );
+        }
+        System.out.println( "Building " + resolved.size() + " versions from " + groups.size() + " different BuildData revisions" );
+
+        if ( Builder.mirrors == null )
+        {
+            Builder.mirrors = new MirrorStore( new File( root, "mirrors" ) );
+        }
+        final ArtifactCache cache = new ArtifactCache( Builder.cacheDir, Builder.cacheSize );
+        final Map<String, BuildInfo> infos = resolved;
+        final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( batchThreads, groups.size() ) ),
+                new ThreadFactoryBuilder().setNameFormat( "Batch Worker #%d" ).build() );
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for ( Map.Entry<String, List<String>> entry : groups.entrySet() )
+            {
+                final List<String> group = entry.getValue();
+                final File localRepository = new File( root, "builddata-" + entry.getKey().replaceAll( "[^A-Za-z0-9._-]", "_" ) + "/m2" );
+                futures.add( executor.submit( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for ( String version : group )
+                        {
+                            File dir = new File( root, version.replaceAll( "[^A-Za-z0-9._-]", "_" ) );
+                            System.out.println( "Building " + version + " in " + dir );
+                            Build build = new Build( version, buildNumber, dir, cache ).setLocalRepository( localRepository );
+                            if ( infos.get( version ) != null )
+                            {
+                                build.setBuildInfo( infos.get( version ) );
+                            }
+                            try
+                            {
+                                build.createPipeline().run( threads );
+                                System.out.println( "Finished building " + version );
+                            } catch ( Throwable t )
+                            {
+                                System.err.println( "**** Failed to build " + version + ": " + t );
+                                synchronized ( failures )
+                                {
+                                    failures.put( version, t );
+                                }
+                            }
+                        }
+                    }
+                } ) );
+            }
+            for ( Future<?> future : futures )
+            {
+                try
+                {
+                    future.get();
+                } catch ( ExecutionException ex )
+                {
+                    throw new RuntimeException( ex.getCause() );
+                }
+            }
+        } finally
+        {
+            executor.shutdownNow();
+        }
+
+        if ( !failures.isEmpty() )
+        {
+            throw new RuntimeException( "Failed to build " + failures.size() + " of " + resolved.size() + " versions: " + failures.keySet(),
+                    failures.values().iterator().next() );
+        }
+    }
+}
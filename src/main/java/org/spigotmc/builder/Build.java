@@ -0,0 +1,1066 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ObjectArrays;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A single run of the build, expressed as a graph of {@link Stage}s. Values
+ * handed from one stage to the next are kept in fields, the pipeline only
+ * starts a stage after the stages producing its inputs have completed.
+ */
+public class Build
+{
+
+    private static final Object MAVEN_LOCK = new Object();
+    private static MavenInvoker sharedMaven;
+
+    private final String askedVersion;
+    private final int buildNumber;
+    private final File root;
+    private final File workDir;
+    private final File bukkit;
+    private final File craftBukkit;
+    private final File migot;
+    private final File buildData;
+    private final ArtifactCache cache;
+    private ArtifactCache.Lease lease;
+    private Git bukkitGit;
+    private Git craftBukkitGit;
+    private Git migotGit;
+    private Git buildGit;
+    private MavenInvoker maven;
+    private File localRepository;
+    private BuildInfo buildInfo = new BuildInfo( "Dev Build", "Development", 0, new BuildInfo.Refs( "master", "master", "master", "master" ) );
+    private boolean buildInfoResolved;
+    private VersionInfo versionInfo;
+    private File vanillaJar;
+    private File finalMappedJar;
+    private String mappedKey;
+    private File decompileDir;
+    private PatchEngine nmsPatches;
+
+    public Build(String askedVersion, int buildNumber)
+    {
+        this( askedVersion, buildNumber, Builder.CWD, new ArtifactCache( Builder.cacheDir, Builder.cacheSize ) );
+    }
+
+    /**
+     * Creates a build which keeps its checkouts, work directory and final
+     * jars below root. Builds sharing a cache share its artifacts.
+     */
+    public Build(String askedVersion, int buildNumber, File root, ArtifactCache cache)
+    {
+        this.askedVersion = askedVersion;
+        this.buildNumber = buildNumber;
+        this.root = root;
+        this.workDir = new File( root, "work" );
+        this.bukkit = new File( root, "Bukkit" );
+        this.craftBukkit = new File( root, "CraftBukkit" );
+        this.migot = new File( root, "Migot" );
+        this.buildData = new File( root, "BuildData" );
+        this.cache = cache;
+    }
+
+    /**
+     * Uses build info which was already resolved instead of fetching it.
+     */
+    public Build setBuildInfo(BuildInfo buildInfo)
+    {
+        this.buildInfo = buildInfo;
+        this.buildInfoResolved = true;
+        return this;
+    }
+
+    /**
+     * Installs to and resolves from a Maven repository of this build's own
+     * instead of the user's. Builds of different versions running at the
+     * same time all install Bukkit, CraftBukkit and the mapped server under
+     * the same SNAPSHOT coordinates, with a repository each none of them can
+     * pick up the others'. Releases are still taken from the user's
+     * repository where they are present.
+     */
+    public Build setLocalRepository(File localRepository)
+    {
+        this.localRepository = localRepository;
+        return this;
+    }
+
+    public Pipeline createPipeline()
+    {
+        workDir.mkdirs();
+
+        Pipeline pipeline = new Pipeline();
+        pipeline.setHistory( new StageHistory( new File( workDir, "stage-times.json" ) ) );
+        pipeline.setResources( Builder.resources );
+        // Cache entries used by this run may be evicted once it is over
+        lease = cache.lease();
+        pipeline.onFinish( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                lease.release();
+            }
+        } );
+        int heap = Builder.resources.getChildHeap();
+
+        pipeline.add( new Stage( "fetch-build-info" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                if ( !Builder.dontUpdate && !Builder.dev && !buildInfoResolved )
+                {
+                    buildInfo = resolveBuildInfo( askedVersion, buildNumber );
+                }
+            }
+        }.produces( "build-info" ) );
+
+        pipeline.add( new Stage( "clone-repositories" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                cloneRepositories();
+            }
+        }.produces( "repo:Bukkit", "repo:CraftBukkit", "repo:Migot", "repo:BuildData" ) );
+
+        pipeline.add( new Stage( "pull-repositories" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                if ( !Builder.dontUpdate )
+                {
+                    pullRepositories();
+                }
+            }
+        }.consumes( "repo:Bukkit", "repo:CraftBukkit", "repo:Migot", "repo:BuildData", "build-info" )
+                .produces( "source:Bukkit", "source:CraftBukkit", "source:Migot", "source:BuildData" ) );
+
+        pipeline.add( new Stage( "setup-maven" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                setupMaven();
+            }
+        }.produces( "maven" ) );
+
+        pipeline.add( new Stage( "read-version-info" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                readVersionInfo();
+            }
+        }.consumes( "source:BuildData" ).produces( "version-info" ) );
+
+        pipeline.add( new Stage( "download-vanilla-jar" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                downloadVanillaJar();
+            }
+        }.consumes( "version-info" ).produces( "vanilla-jar" ) );
+
+        pipeline.add( new Stage( "remap-jar" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                remapJar();
+            }
+        }.consumes( "version-info", "vanilla-jar", "source:BuildData" ).produces( "mapped-jar" ).memory( heap ) );
+
+        pipeline.add( new Stage( "install-mapped-jar" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                maven( Builder.CWD, "install:install-file", "-Dfile=" + finalMappedJar, "-Dpackaging=jar", "-DgroupId=org.spigotmc",
+                        "-DartifactId=minecraft-server", "-Dversion=" + versionInfo.getMinecraftVersion() + "-SNAPSHOT" );
+            }
+        }.consumes( "mapped-jar", "maven" ).produces( "minecraft-server-artifact" ).memory( heap ) );
+
+        Stage decompile = new Stage( "decompile" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                decompile();
+            }
+        }.consumes( "mapped-jar" ).produces( "decompile" ).memory( heap * Builder.decompileThreads );
+        if ( Builder.targetedDecompile )
+        {
+            // The classes to decompile are worked out from the CraftBukkit patches
+            decompile.consumes( "source:CraftBukkit" );
+        }
+        pipeline.add( decompile );
+
+        pipeline.add( new Stage( "patch-nms" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                patchNms();
+            }
+        }.consumes( "decompile", "source:CraftBukkit" ).produces( "nms-sources" ) );
+
+        pipeline.add( new Stage( "commit-patched" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                commitPatched();
+            }
+        }.consumes( "nms-sources" ).produces( "patched-branch" ) );
+
+        pipeline.add( new Stage( "clone-spigot-api" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                File spigotApi = new File( migot, "Bukkit" );
+                if ( !spigotApi.exists() )
+                {
+                    Builder.clone( "file://" + bukkit.getAbsolutePath(), spigotApi );
+                }
+            }
+        }.consumes( "source:Bukkit", "source:Migot" ).produces( "repo:Migot/Bukkit" ) );
+
+        pipeline.add( new Stage( "clone-spigot-server" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                File migotServer = new File( migot, "CraftBukkit" );
+                if ( !migotServer.exists() )
+                {
+                    Builder.clone( "file://" + craftBukkit.getAbsolutePath(), migotServer );
+                }
+            }
+        }.consumes( "patched-branch", "source:Migot" ).produces( "repo:Migot/CraftBukkit" ) );
+
+        pipeline.add( new Stage( "apply-patches" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                Fingerprint fingerprint = fingerprint( getName() ).heads( migot, bukkit, craftBukkit ).status( migot );
+                if ( upToDate( getName(), fingerprint, new File( migot, "Migot-API" ), new File( migot, "Migot-Server" ) ) )
+                {
+                    return;
+                }
+
+                if ( !PatchSeries.applyAll( migot ) )
+                {
+                    System.out.println( "Could not make sense of applyPatches.sh, running it through bash" );
+                    try
+                    {
+                        Builder.runProcess( migot, "bash", "applyPatches.sh" );
+                    } catch ( Exception ex )
+                    {
+                        System.err.println( "Error compiling Migot, are you running this jar via msysgit?" );
+                        throw ex;
+                    }
+                }
+                System.out.println( "*** Spigot and Migot patches applied!" );
+                fingerprint.save();
+            }
+        }.consumes( "repo:Migot/Bukkit", "repo:Migot/CraftBukkit" ).produces( "migot-sources" ) );
+
+        if ( !Builder.skipCompile )
+        {
+            addCompileStages( pipeline );
+        }
+
+        return pipeline;
+    }
+
+    private void addCompileStages(Pipeline pipeline)
+    {
+        int heap = Builder.resources.getChildHeap();
+        pipeline.add( new Stage( "compile-bukkit" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                Fingerprint fingerprint = fingerprint( getName() ).heads( bukkit ).status( bukkit )
+                        .add( String.valueOf( Builder.generateDocs ) ).add( String.valueOf( Builder.generateSource ) );
+                if ( upToDate( getName(), fingerprint, ObjectArrays.concat( jars( new File( bukkit, "target" ), "bukkit" ), installed( bukkit ), File.class ) ) )
+                {
+                    return;
+                }
+
+                System.out.println( "Compiling Bukkit" );
+                install( bukkit, new File[]
+                {
+                    bukkit
+                } );
+                if ( Builder.generateDocs )
+                {
+                    maven( bukkit, "javadoc:jar" );
+                }
+                if ( Builder.generateSource )
+                {
+                    maven( bukkit, "source:jar" );
+                }
+                fingerprint.save();
+            }
+        }.consumes( "source:Bukkit", "maven" ).produces( "bukkit-jar" ).memory( heap ) );
+
+        pipeline.add( new Stage( "compile-craftbukkit" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                Fingerprint fingerprint = fingerprint( getName() ).heads( craftBukkit ).status( craftBukkit )
+                        .files( jars( new File( bukkit, "target" ), "bukkit" ) ).files( finalMappedJar );
+                if ( upToDate( getName(), fingerprint, ObjectArrays.concat( jars( new File( craftBukkit, "target" ), "craftbukkit" ), installed( craftBukkit ), File.class ) ) )
+                {
+                    return;
+                }
+
+                System.out.println( "Compiling CraftBukkit" );
+                // The NMS sources are rewritten by patch-nms and not tracked, the manifest stands in for them
+                install( craftBukkit, new File[]
+                {
+                    craftBukkit
+                }, nmsManifest() );
+                fingerprint.save();
+            }
+        }.consumes( "patched-branch", "bukkit-jar", "minecraft-server-artifact", "maven" ).produces( "craftbukkit-jar" ).memory( heap ) );
+
+        pipeline.add( new Stage( "compile-migot" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                File[] repositories =
+                {
+                    migot, new File( migot, "Migot-API" ), new File( migot, "Migot-Server" )
+                };
+                Fingerprint fingerprint = fingerprint( getName() ).heads( repositories ).status( repositories ).files( finalMappedJar );
+                if ( upToDate( getName(), fingerprint, ObjectArrays.concat( jars( new File( migot, "Migot-Server/target" ), "migot" ), installed( repositories ), File.class ) ) )
+                {
+                    return;
+                }
+
+                try
+                {
+                    System.out.println( "Compiling Migot & Spigot-API" );
+                    install( migot, repositories );
+                } catch ( Exception ex )
+                {
+                    System.err.println( "Error compiling Migot, are you running this jar via msysgit?" );
+                    throw ex;
+                }
+                fingerprint.save();
+            }
+        }.consumes( "migot-sources", "minecraft-server-artifact", "maven" ).produces( "migot-jar" ).memory( heap ) );
+
+        pipeline.add( new Stage( "copy-jars" )
+        {
+            @Override
+            public void run() throws Exception
+            {
+                for ( int i = 0; i < 35; i++ )
+                {
+                    System.out.println( " " );
+                }
+
+                System.out.println( "Success! Everything compiled successfully. Copying final .jar files now." );
+                Builder.copyJar( new File( craftBukkit, "target" ), "craftbukkit", new File( root, "craftbukkit-" + versionInfo.getMinecraftVersion() + ".jar" ) );
+                Builder.copyJar( new File( migot, "Migot-Server/target" ), "migot", new File( root, "migot-" + versionInfo.getMinecraftVersion() + ".jar" ) );
+            }
+        }.consumes( "craftbukkit-jar", "migot-jar" ) );
+    }
+
+    private void cloneRepositories() throws Exception
+    {
+        RepositorySync sync = new RepositorySync( Builder.gitThreads );
+        if ( !bukkit.exists() )
+        {
+            sync.clone( "https://hub.spigotmc.org/stash/scm/spigot/bukkit.git", bukkit );
+        }
+        if ( !craftBukkit.exists() )
+        {
+            sync.clone( "https://hub.spigotmc.org/stash/scm/spigot/craftbukkit.git", craftBukkit );
+        }
+        if ( !migot.exists() )
+        {
+            sync.clone( "https://github.com/Poweruser/Migot.git", migot );
+        }
+        if ( !buildData.exists() )
+        {
+            sync.clone( "https://hub.spigotmc.org/stash/scm/spigot/builddata.git", buildData );
+        }
+        sync.run();
+
+        bukkitGit = Git.open( bukkit );
+        craftBukkitGit = Git.open( craftBukkit );
+        migotGit = Git.open( migot );
+        buildGit = Git.open( buildData );
+    }
+
+    private void pullRepositories() throws Exception
+    {
+        new RepositorySync( Builder.gitThreads )
+                .pull( buildGit, buildInfo.getRefs().getBuildData() )
+                .pull( bukkitGit, buildInfo.getRefs().getBukkit() )
+                .pull( craftBukkitGit, buildInfo.getRefs().getCraftBukkit() )
+                .pull( migotGit, buildInfo.getRefs().getMigot() )
+                .run();
+    }
+
+    /**
+     * Maven's local repository is not safe to be written by several builds at
+     * once, so all invocations share this lock while other stages carry on.
+     * The lock does not keep another build from installing between two
+     * invocations of this one, builds running side by side need a local
+     * repository each, see {@link #setLocalRepository}.
+     */
+    private void maven(File workDir, String... goals) throws Exception
+    {
+        if ( localRepository != null )
+        {
+            String[] args = new String[ goals.length + 3 ];
+            args[0] = "-Dmaven.repo.local=" + localRepository.getAbsolutePath();
+            args[1] = "-gs";
+            args[2] = repositorySettings().getAbsolutePath();
+            System.arraycopy( goals, 0, args, 3, goals.length );
+            goals = args;
+        }
+        synchronized ( MAVEN_LOCK )
+        {
+            maven.execute( workDir, goals );
+        }
+    }
+
+    private File repositorySettings()
+    {
+        return new File( localRepository.getParentFile(), localRepository.getName() + ".settings.xml" );
+    }
+
+    /**
+     * Writes the global settings for the build's own local repository, which
+     * add the user's local repository as a remote one for releases only. The
+     * SNAPSHOTs installed there by other builds are never seen.
+     */
+    private void writeRepositorySettings() throws IOException
+    {
+        localRepository.mkdirs();
+        String shared = new File( System.getProperty( "user.home" ), ".m2/repository" ).toURI().toString();
+        String repository = "<id>user-local</id><url>" + shared + "</url>"
+                + "<releases><enabled>true</enabled></releases><snapshots><enabled>false</enabled></snapshots>";
+        Files.write( "<settings>\n"
+                + "  <profiles>\n"
+                + "    <profile>\n"
+                + "      <id>user-local-repository</id>\n"
+                + "      <repositories><repository>" + repository + "</repository></repositories>\n"
+                + "      <pluginRepositories><pluginRepository>" + repository + "</pluginRepository></pluginRepositories>\n"
+                + "    </profile>\n"
+                + "  </profiles>\n"
+                + "  <activeProfiles><activeProfile>user-local-repository</activeProfile></activeProfiles>\n"
+                + "</settings>\n", repositorySettings(), Charsets.UTF_8 );
+    }
+
+    /**
+     * Runs clean install for the project, leaving out the clean if no branch
+     * of the given repositories moved, none of their uncommitted changes
+     * differ and the given files are the same since the last successful
+     * install. The incremental compile then only rebuilds what was touched.
+     */
+    private void install(File project, File[] repositories, File... files) throws Exception
+    {
+        Fingerprint heads = new Fingerprint( new File( workDir, project.getName() + ".installed" ) ).heads( repositories ).status( repositories ).files( files );
+        if ( heads.matches() )
+        {
+            System.out.println( "No changes to " + project + " since the last build, skipping clean" );
+            heads.invalidate();
+            maven( project, "install" );
+        } else
+        {
+            heads.invalidate();
+            maven( project, "clean", "install" );
+        }
+        heads.save();
+    }
+
+    private Fingerprint fingerprint(String stage)
+    {
+        return new Fingerprint( new File( workDir, "fingerprints/" + stage ) );
+    }
+
+    /**
+     * Checks whether a stage can be skipped because its inputs match the last
+     * successful run and all of its outputs still exist. If not, the saved
+     * fingerprint is dropped until the stage succeeds again.
+     */
+    private boolean upToDate(String stage, Fingerprint fingerprint, File... outputs) throws IOException
+    {
+        boolean exists = outputs.length > 0;
+        for ( File output : outputs )
+        {
+            exists &= output.exists();
+        }
+        if ( exists && fingerprint.matches() )
+        {
+            System.out.println( "Nothing changed since the last build, skipping " + stage );
+            return true;
+        }
+        fingerprint.invalidate();
+        return false;
+    }
+
+    /**
+     * The files each project installs into the local repository, its pom and
+     * unless it only aggregates modules its jar. The stages after it resolve
+     * the project from there, not from its target directory.
+     */
+    private File[] installed(File... projects) throws Exception
+    {
+        File repository = ( localRepository != null ) ? localRepository : new File( System.getProperty( "user.home" ), ".m2/repository" );
+        List<File> installed = new ArrayList<File>();
+        for ( File project : projects )
+        {
+            Element pom = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( new File( project, "pom.xml" ) ).getDocumentElement();
+            Element parent = child( pom, "parent" );
+            String groupId = ( child( pom, "groupId" ) == null && parent != null ) ? text( parent, "groupId" ) : text( pom, "groupId" );
+            String version = ( child( pom, "version" ) == null && parent != null ) ? text( parent, "version" ) : text( pom, "version" );
+            String artifactId = text( pom, "artifactId" );
+            File dir = new File( repository, groupId.replace( '.', '/' ) + "/" + artifactId + "/" + version );
+            installed.add( new File( dir, artifactId + "-" + version + ".pom" ) );
+            if ( !"pom".equals( text( pom, "packaging" ) ) )
+            {
+                installed.add( new File( dir, artifactId + "-" + version + ".jar" ) );
+            }
+        }
+        return installed.toArray( new File[ installed.size() ] );
+    }
+
+    private static Element child(Element parent, String name)
+    {
+        for ( Node node = parent.getFirstChild(); node != null; node = node.getNextSibling() )
+        {
+            if ( node instanceof Element && node.getNodeName().equals( name ) )
+            {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    private static String text(Element parent, String name)
+    {
+        Element child = child( parent, name );
+        return ( child == null ) ? null : child.getTextContent().trim();
+    }
+
+    /**
+     * Lists the jars in the directory whose name starts with the prefix, in a
+     * stable order.
+     */
+    private static File[] jars(File dir, final String prefix)
+    {
+        File[] jars = dir.listFiles( new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith( prefix ) && name.endsWith( ".jar" );
+            }
+        } );
+        if ( jars == null )
+        {
+            return new File[ 0 ];
+        }
+        Arrays.sort( jars );
+        return jars;
+    }
+
+    /**
+     * Looks up the build info of a version, which may also be given as the
+     * path of a BuildInfo JSON file.
+     */
+    public static BuildInfo resolveBuildInfo(String askedVersion, int buildNumber) throws Exception
+    {
+        System.out.println( "Attempting to build version: '" + askedVersion + "' use --rev <version> to override" );
+
+        String verInfo;
+        File file = new File( askedVersion );
+        if ( askedVersion.endsWith( ".json" ) && file.isFile() )
+        {
+            verInfo = Files.toString( file, Charsets.UTF_8 );
+        } else
+        {
+            try
+            {
+                verInfo = Builder.get( "https://github.com/Poweruser/Migot/wiki/versions/" + askedVersion + ".json" );
+            } catch ( IOException ex )
+            {
+                System.err.println( "Could not get version " + askedVersion + " does it exist? Try another version or use 'latest'" );
+                throw ex;
+            }
+        }
+        System.out.println( "Found version" );
+        System.out.println( verInfo );
+
+        BuildInfo buildInfo = new Gson().fromJson( verInfo, BuildInfo.class );
+
+        if ( buildNumber != -1 && buildInfo.getToolsVersion() != -1 && buildNumber < buildInfo.getToolsVersion() )
+        {
+            System.err.println( "**** Your BuildTools is out of date and will not build the requested version. Please grab a new copy from http://www.spigotmc.org/" );
+            throw new IllegalStateException( "BuildTools #" + buildNumber + " is older than required #" + buildInfo.getToolsVersion() );
+        }
+        return buildInfo;
+    }
+
+    private void setupMaven() throws Exception
+    {
+        // Builds of a batch share the one Maven install
+        synchronized ( Build.class )
+        {
+            setupMaven0();
+        }
+        if ( localRepository != null )
+        {
+            writeRepositorySettings();
+        }
+    }
+
+    private void setupMaven0() throws Exception
+    {
+        File maven;
+        String m2Home = System.getenv( "M2_HOME" );
+        if ( m2Home == null || !( maven = new File( m2Home ) ).exists() )
+        {
+            maven = new File( "apache-maven-3.2.5" );
+
+            if ( !maven.exists() )
+            {
+                System.out.println( "Maven does not exist, downloading. Please wait." );
+
+                File mvnTemp = new File( "mvn.zip" );
+                mvnTemp.deleteOnExit();
+
+                Builder.download( "http://static.spigotmc.org/maven/apache-maven-3.2.5-bin.zip", mvnTemp );
+                Builder.unzip( mvnTemp, new File( "." ) );
+            }
+        }
+
+        // Later builds in the same JVM reuse the Maven loaded by the first
+        if ( sharedMaven == null || !sharedMaven.getMavenHome().equals( maven ) )
+        {
+            sharedMaven = new MavenInvoker( maven, Builder.embeddedMaven, Builder.mavenThreads );
+        }
+        this.maven = sharedMaven;
+    }
+
+    private void readVersionInfo() throws Exception
+    {
+        versionInfo = new Gson().fromJson(
+                Resources.toString( new File( buildData, "info.json" ).toURI().toURL(), Charsets.UTF_8 ),
+                VersionInfo.class
+        );
+        // Default to 1.8 builds.
+        if ( versionInfo == null )
+        {
+            versionInfo = new VersionInfo( "1.8", "bukkit-1.8.at", "bukkit-1.8-cl.csrg", "bukkit-1.8-members.csrg", "package.srg", null );
+        }
+        System.out.println( "Attempting to build Minecraft with details: " + versionInfo );
+    }
+
+    private void downloadVanillaJar() throws Exception
+    {
+        vanillaJar = new File( workDir, "minecraft_server." + versionInfo.getMinecraftVersion() + ".jar" );
+        if ( !vanillaJar.exists() || !Builder.checkHash( vanillaJar, versionInfo ) )
+        {
+            String expected = ( Builder.dev ) ? null : versionInfo.getMinecraftHash();
+            String hash;
+            try
+            {
+                hash = Builder.download( String.format( "https://s3.amazonaws.com/Minecraft.Download/versions/%1$s/minecraft_server.%1$s.jar", versionInfo.getMinecraftVersion() ), vanillaJar, expected );
+            } catch ( IOException ex )
+            {
+                System.err.println( "**** Could not download clean Minecraft jar, giving up." );
+                throw ex;
+            }
+            Builder.checkHash( hash, versionInfo );
+        }
+    }
+
+    private static String hash(File file) throws IOException
+    {
+        return Builder.hashes.md5( file );
+    }
+
+    private void remapJar() throws Exception
+    {
+        removeLegacyArtifacts();
+
+        final File classMappings = new File( buildData, "mappings/" + versionInfo.getClassMappings() );
+        final File memberMappings = new File( buildData, "mappings/" + versionInfo.getMemberMappings() );
+        final File packageMappings = new File( buildData, "mappings/" + versionInfo.getPackageMappings() );
+        final File accessTransforms = new File( buildData, "mappings/" + versionInfo.getAccessTransforms() );
+        final File specialSource2 = new File( buildData, "bin/SpecialSource-2.jar" );
+        final File specialSource = new File( buildData, "bin/SpecialSource.jar" );
+
+        Hasher key = Hashing.md5().newHasher();
+        for ( HashIndex.Entry input : Builder.hashes.digestAll( vanillaJar, classMappings, memberMappings, packageMappings, accessTransforms, specialSource2, specialSource ).values() )
+        {
+            key.putString( input.getMd5(), Charsets.UTF_8 );
+        }
+        mappedKey = key.hash().toString();
+
+        File entry = lease.get( "mapped-" + mappedKey, new ArtifactCache.Producer()
+        {
+            @Override
+            public void produce(File target) throws Exception
+            {
+                File mappedJar = new File( target, "mapped.jar" );
+                System.out.println( "Final mapped jar: " + mappedJar + " does not exist, creating!" );
+
+                File clMappedJar = new File( mappedJar + "-cl" );
+                File mMappedJar = new File( mappedJar + "-m" );
+
+                EmbeddedTool.run( specialSource2, "map", "-i", vanillaJar.getPath(), "-m", classMappings.getPath(), "-o", clMappedJar.getPath() );
+
+                EmbeddedTool.run( specialSource2, "map", "-i", clMappedJar.getPath(), "-m", memberMappings.getPath(), "-o", mMappedJar.getPath() );
+
+                EmbeddedTool.run( specialSource, "--kill-lvt", "-i", mMappedJar.getPath(), "--access-transformer", accessTransforms.getPath(),
+                        "-m", packageMappings.getPath(), "-o", mappedJar.getPath() );
+
+                clMappedJar.delete();
+                mMappedJar.delete();
+            }
+        } );
+        finalMappedJar = new File( entry, "mapped.jar" );
+    }
+
+    private void decompile() throws Exception
+    {
+        final File fernflower = new File( buildData, "bin/fernflower.jar" );
+        final String[] options = new String[]
+        {
+            "-dgs=1", "-hdc=0", "-rbr=0", "-asc=1", "-udv=0"
+        };
+
+        Hasher key = Hashing.md5().newHasher();
+        key.putString( mappedKey, Charsets.UTF_8 );
+        key.putString( hash( fernflower ), Charsets.UTF_8 );
+        key.putString( Arrays.toString( options ), Charsets.UTF_8 );
+
+        if ( Builder.targetedDecompile )
+        {
+            decompileTargeted( "decompile-" + key.hash().toString(), fernflower, options );
+            return;
+        }
+
+        decompileDir = lease.get( "decompile-" + key.hash().toString(), new ArtifactCache.Producer()
+        {
+            @Override
+            public void produce(File target) throws Exception
+            {
+                File clazzDir = new File( target, "classes" );
+                Builder.unzip( finalMappedJar, clazzDir, new Predicate<String>()
+                {
+
+                    @Override
+                    public boolean apply(String input)
+                    {
+                        return input.startsWith( "net/minecraft/server" );
+                    }
+                } );
+
+                new Decompiler( fernflower, options, Builder.decompileThreads ).decompile( clazzDir, target );
+            }
+        } );
+    }
+
+    /**
+     * Decompiles only the classes the CraftBukkit patches apply to. Sources
+     * already decompiled for an earlier set of patches are copied from the
+     * most recent cache entry for the same mapped jar, only new classes are
+     * passed to fernflower. A full decompile of the same jar is reused too.
+     */
+    private void decompileTargeted(String baseKey, final File fernflower, final String[] options) throws Exception
+    {
+        final Set<String> needed = new TreeSet<String>();
+        for ( String patch : new File( craftBukkit, "nms-patches" ).list() )
+        {
+            needed.add( "net/minecraft/server/" + patch.replaceAll( ".patch", "" ) );
+        }
+
+        Hasher key = Hashing.md5().newHasher();
+        for ( String clazz : needed )
+        {
+            key.putString( clazz, Charsets.UTF_8 );
+        }
+
+        final File previous = lease.find( baseKey );
+        decompileDir = lease.get( baseKey + "-" + key.hash().toString(), new ArtifactCache.Producer()
+        {
+            @Override
+            public void produce(File target) throws Exception
+            {
+                final Set<String> missing = new TreeSet<String>();
+                for ( String clazz : needed )
+                {
+                    File source = ( previous == null ) ? null : new File( previous, clazz + ".java" );
+                    if ( source != null && source.isFile() )
+                    {
+                        FileUtils.copyFile( source, new File( target, clazz + ".java" ) );
+                    } else
+                    {
+                        missing.add( clazz );
+                    }
+                }
+                System.out.println( "Reused " + ( needed.size() - missing.size() ) + " decompiled classes, " + missing.size() + " left to decompile" );
+                if ( missing.isEmpty() )
+                {
+                    return;
+                }
+
+                File clazzDir = new File( target, "classes" );
+                Builder.unzip( finalMappedJar, clazzDir, new Predicate<String>()
+                {
+
+                    @Override
+                    public boolean apply(String input)
+                    {
+                        return input.startsWith( "net/minecraft/server" );
+                    }
+                } );
+                new Decompiler( fernflower, options, Builder.decompileThreads ).decompile( clazzDir, target, new Predicate<String>()
+                {
+
+                    @Override
+                    public boolean apply(String input)
+                    {
+                        return missing.contains( input );
+                    }
+                } );
+                FileUtils.deleteDirectory( clazzDir );
+            }
+        } );
+    }
+
+    /**
+     * Mapped jars and decompiled sources used to be kept directly in the work
+     * directory and were never cleaned up, they now live in the cache.
+     */
+    private void removeLegacyArtifacts()
+    {
+        File[] legacy = workDir.listFiles( new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith( "mapped." ) || name.startsWith( "decompile-" );
+            }
+        } );
+        if ( legacy != null )
+        {
+            for ( File file : legacy )
+            {
+                System.out.println( "Removing legacy artifact " + file );
+                FileUtils.deleteQuietly( file );
+            }
+        }
+    }
+
+    private void patchNms() throws Exception
+    {
+        System.out.println( "Applying CraftBukkit Patches" );
+        File patchDir = new File( craftBukkit, "nms-patches" );
+        File manifest = nmsManifest();
+        File backupDir = new File( workDir, "nms.old." + System.currentTimeMillis() );
+        nmsPatches = new PatchEngine( patchDir, decompileDir, new File( craftBukkit, "src/main/java" ), manifest, backupDir, Builder.resources.getCores() );
+        nmsPatches.run();
+    }
+
+    private File nmsManifest()
+    {
+        return new File( workDir, "nms.patches.json" );
+    }
+
+    /**
+     * Commits the NMS sources on top of HEAD as the patched branch. Only the
+     * outputs the patch engine wrote are read from disk, every other NMS
+     * file is taken from the previous patched commit, provided it is the one
+     * this build made last time. Without it all outputs are read.
+     */
+    private void commitPatched() throws Exception
+    {
+        Repository repository = craftBukkitGit.getRepository();
+        ObjectId patched = repository.resolve( "refs/heads/patched" );
+        ObjectId patchedParent = repository.resolve( "refs/heads/patched^1" );
+        File patchedFile = new File( workDir, "nms.patched" );
+        boolean ours = patched != null && patchedFile.isFile() && patched.name().equals( Files.toString( patchedFile, Charsets.UTF_8 ).trim() );
+        boolean changed = !nmsPatches.getWritten().isEmpty() || nmsPatches.getRemoved() > 0;
+        if ( ours && !changed && patchedParent.equals( repository.resolve( Constants.HEAD ) ) )
+        {
+            System.out.println( "NMS sources unchanged, patched branch is up to date" );
+            return;
+        }
+
+        // Build the commit straight from the trees and the written files, the working tree and index stay as they are
+        String srcPath = "src/main/java/";
+        Set<String> outputs = new HashSet<String>();
+        for ( String output : nmsPatches.getOutputs() )
+        {
+            outputs.add( srcPath + output );
+        }
+        Set<String> done = new HashSet<String>();
+        ObjectInserter inserter = repository.newObjectInserter();
+        RevWalk walk = new RevWalk( repository );
+        try
+        {
+            RevCommit head = walk.parseCommit( repository.resolve( Constants.HEAD ) );
+
+            DirCache tree = DirCache.newInCore();
+            DirCacheBuilder builder = tree.builder();
+
+            // Unchanged outputs as they were committed last time
+            if ( ours )
+            {
+                TreeWalk treeWalk = new TreeWalk( repository );
+                try
+                {
+                    treeWalk.addTree( walk.parseCommit( patched ).getTree() );
+                    treeWalk.setRecursive( true );
+                    treeWalk.setFilter( PathFilter.create( srcPath + "net" ) );
+                    while ( treeWalk.next() )
+                    {
+                        String path = treeWalk.getPathString();
+                        if ( outputs.contains( path ) && !nmsPatches.getWritten().contains( path.substring( srcPath.length() ) ) )
+                        {
+                            builder.add( entry( treeWalk ) );
+                            done.add( path );
+                        }
+                    }
+                } finally
+                {
+                    treeWalk.release();
+                }
+            }
+
+            // Written outputs, and all of them if there was nothing to start from
+            int read = 0;
+            for ( String path : outputs )
+            {
+                if ( done.contains( path ) )
+                {
+                    continue;
+                }
+                File file = new File( craftBukkit, path );
+                DirCacheEntry entry = new DirCacheEntry( path );
+                entry.setFileMode( FileMode.REGULAR_FILE );
+                entry.setLength( file.length() );
+                InputStream in = new FileInputStream( file );
+                try
+                {
+                    entry.setObjectId( inserter.insert( Constants.OBJ_BLOB, file.length(), in ) );
+                } finally
+                {
+                    in.close();
+                }
+                builder.add( entry );
+                read++;
+            }
+
+            // Everything else as in HEAD
+            TreeWalk treeWalk = new TreeWalk( repository );
+            try
+            {
+                treeWalk.addTree( head.getTree() );
+                treeWalk.setRecursive( true );
+                while ( treeWalk.next() )
+                {
+                    if ( !outputs.contains( treeWalk.getPathString() ) )
+                    {
+                        builder.add( entry( treeWalk ) );
+                    }
+                }
+            } finally
+            {
+                treeWalk.release();
+            }
+            builder.finish();
+
+            PersonIdent ident = new PersonIdent( repository );
+            CommitBuilder commit = new CommitBuilder();
+            commit.setTreeId( tree.writeTree( inserter ) );
+            commit.setParentId( head );
+            commit.setAuthor( ident );
+            commit.setCommitter( ident );
+            commit.setMessage( "CraftBukkit $ " + new Date() );
+            ObjectId commitId = inserter.insert( commit );
+            inserter.flush();
+
+            RefUpdate update = repository.updateRef( "refs/heads/patched" );
+            update.setNewObjectId( commitId );
+            update.setRefLogMessage( "commit: " + commit.getMessage(), false );
+            RefUpdate.Result result = update.forceUpdate();
+            if ( result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED && result != RefUpdate.Result.NO_CHANGE )
+            {
+                throw new IOException( "Could not update the patched branch: " + result );
+            }
+            Files.write( commitId.name(), patchedFile, Charsets.UTF_8 );
+            System.out.println( "Committed " + outputs.size() + " NMS files to patched as " + commitId.name() + ", " + read + " of them read from disk" );
+        } finally
+        {
+            walk.release();
+            inserter.release();
+        }
+    }
+
+    private static DirCacheEntry entry(TreeWalk treeWalk)
+    {
+        DirCacheEntry entry = new DirCacheEntry( treeWalk.getRawPath() );
+        entry.setFileMode( treeWalk.getFileMode( 0 ) );
+        entry.setObjectId( treeWalk.getObjectId( 0 ) );
+        return entry;
+    }
+}
@@ -0,0 +1,288 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import com.google.gson.GsonBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+
+/**
+ * Records how long the stages of a build and the steps within them take, and
+ * what they cost, and writes the result out as JSON and CSV once the build is
+ * over. Every span records its wall time, the CPU time of the thread it ran
+ * on, the CPU time of child processes which finished meanwhile, bytes read
+ * and written by this JVM and the peak heap in use. Child CPU time and I/O
+ * are read from /proc and are counted for the whole process, so they are
+ * only exact for spans which did not overlap with others, and are -1 where
+ * /proc is not available. Jobs of the build server collect their spans into
+ * a report of their own, see {@link #setReport}.
+ */
+public class BuildReport
+{
+
+    private static final long START = System.currentTimeMillis();
+    private static final InheritableThreadLocal<String> stage = new InheritableThreadLocal<String>();
+    private static final List<Span> spans = Collections.synchronizedList( new ArrayList<Span>() );
+    private static final InheritableThreadLocal<List<Span>> report = new InheritableThreadLocal<List<Span>>();
+    private static final Set<Span> open = Collections.newSetFromMap( new IdentityHashMap<Span, Boolean>() );
+    private static Thread sampler;
+
+    /**
+     * Starts a span, which must be ended once the work it covers is over,
+     * usually from a finally block.
+     */
+    public static Span start(String kind, String name)
+    {
+        Span span = new Span( kind, name );
+        synchronized ( open )
+        {
+            open.add( span );
+            if ( sampler == null )
+            {
+                sampler = new Thread( new Sampler(), "Report Sampler" );
+                sampler.setDaemon( true );
+                sampler.start();
+            }
+        }
+        span.sample( heapUsed() );
+        return span;
+    }
+
+    /**
+     * Marks the current thread, and every thread it starts, as working for
+     * the given stage.
+     */
+    static void setStage(String name)
+    {
+        stage.set( name );
+    }
+
+    /**
+     * Collects the spans started by the current thread, and every thread it
+     * starts, into the given synchronized list instead of the report of the
+     * whole run, or stops doing so if it is null.
+     */
+    static void setReport(List<Span> spans)
+    {
+        report.set( spans );
+    }
+
+    public static void write(File json, File csv) throws IOException
+    {
+        write( spans, json, csv );
+    }
+
+    static void write(List<Span> spans, File json, File csv) throws IOException
+    {
+        List<Span> copy;
+        synchronized ( spans )
+        {
+            copy = new ArrayList<Span>( spans );
+        }
+
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        report.put( "started", START );
+        report.put( "spans", copy );
+        Files.write( new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson( report ), json, Charsets.UTF_8 );
+
+        StringBuilder out = new StringBuilder( "kind,name,stage,thread,start,wallMillis,threadCpuMillis,childCpuMillis,bytesRead,bytesWritten,peakHeap,status\n" );
+        for ( Span span : copy )
+        {
+            out.append( Joiner.on( ',' ).join( span.getKind(), quote( span.getName() ), quote( span.getStage() ), quote( span.getThread() ), span.getStart(), span.getWallMillis(),
+                    span.getThreadCpuMillis(), span.getChildCpuMillis(), span.getBytesRead(), span.getBytesWritten(), span.getPeakHeap(), span.getStatus() ) ).append( '\n' );
+        }
+        Files.write( out, csv, Charsets.UTF_8 );
+        System.out.println( "Wrote build report with " + copy.size() + " entries to " + json + " and " + csv );
+    }
+
+    private static String quote(String value)
+    {
+        return ( value == null ) ? "" : '"' + value.replace( "\"", "\"\"" ) + '"';
+    }
+
+    private static long heapUsed()
+    {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long threadCpu()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return ( threads.isCurrentThreadCpuTimeSupported() ) ? TimeUnit.NANOSECONDS.toMillis( threads.getCurrentThreadCpuTime() ) : -1;
+    }
+
+    /**
+     * CPU time of all finished children, cutime and cstime from
+     * /proc/self/stat. Linux counts these in USER_HZ, which is 100.
+     */
+    private static long childCpu()
+    {
+        try
+        {
+            String stat = Files.toString( new File( "/proc/self/stat" ), Charsets.US_ASCII );
+            String[] fields = stat.substring( stat.lastIndexOf( ')' ) + 2 ).split( " " );
+            return ( Long.parseLong( fields[13] ) + Long.parseLong( fields[14] ) ) * 10;
+        } catch ( Exception ex )
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Bytes read and written by this process, rchar and wchar from
+     * /proc/self/io.
+     */
+    private static long[] io()
+    {
+        long[] io =
+        {
+            -1, -1
+        };
+        try
+        {
+            for ( String line : Files.readLines( new File( "/proc/self/io" ), Charsets.US_ASCII ) )
+            {
+                if ( line.startsWith( "rchar:" ) )
+                {
+                    io[0] = Long.parseLong( line.substring( 6 ).trim() );
+                } else if ( line.startsWith( "wchar:" ) )
+                {
+                    io[1] = Long.parseLong( line.substring( 6 ).trim() );
+                }
+            }
+        } catch ( Exception ex )
+        {
+            // Not on Linux
+        }
+        return io;
+    }
+
+    private static long delta(long start, long end)
+    {
+        return ( start == -1 || end == -1 ) ? -1 : end - start;
+    }
+
+    @Getter
+    public static class Span
+    {
+
+        private final String kind;
+        private final String name;
+        private final String stage;
+        private final String thread;
+        private final long start;
+        private long wallMillis = -1;
+        private long threadCpuMillis = -1;
+        private long childCpuMillis = -1;
+        private long bytesRead = -1;
+        private long bytesWritten = -1;
+        private long peakHeap;
+        private String status = "running";
+        private final transient long startNanos;
+        private final transient long startThreadCpu;
+        private final transient long startChildCpu;
+        private final transient long[] startIo;
+        private final transient List<Span> report;
+
+        private Span(String kind, String name)
+        {
+            this.kind = kind;
+            this.name = name;
+            this.stage = BuildReport.stage.get();
+            this.thread = Thread.currentThread().getName();
+            this.start = System.currentTimeMillis() - START;
+            this.startNanos = System.nanoTime();
+            this.startThreadCpu = threadCpu();
+            this.startChildCpu = childCpu();
+            this.startIo = io();
+            this.report = ( BuildReport.report.get() == null ) ? spans : BuildReport.report.get();
+        }
+
+        private synchronized void sample(long heap)
+        {
+            peakHeap = Math.max( peakHeap, heap );
+        }
+
+        /**
+         * Marks the work covered by the span as successful, spans ended
+         * without this are reported as failed.
+         */
+        public synchronized void succeeded()
+        {
+            status = "ok";
+        }
+
+        /**
+         * Ends the span, calling it again has no effect. Must be called on the
+         * thread that started the span.
+         */
+        public void end()
+        {
+            long[] endIo = io();
+            synchronized ( this )
+            {
+                if ( wallMillis != -1 )
+                {
+                    return;
+                }
+                wallMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startNanos );
+                threadCpuMillis = delta( startThreadCpu, threadCpu() );
+                childCpuMillis = delta( startChildCpu, childCpu() );
+                bytesRead = delta( startIo[0], endIo[0] );
+                bytesWritten = delta( startIo[1], endIo[1] );
+                if ( !status.equals( "ok" ) )
+                {
+                    status = "failed";
+                }
+            }
+            sample( heapUsed() );
+            synchronized ( open )
+            {
+                open.remove( this );
+            }
+            report.add( this );
+        }
+    }
+
+    /**
+     * Updates the peak heap of every open span ten times a second.
+     */
+    private static class Sampler implements Runnable
+    {
+
+        @Override
+        public void run()
+        {
+            while ( true )
+            {
+                long heap = heapUsed();
+                synchronized ( open )
+                {
+                    for ( Span span : open )
+                    {
+                        span.sample( heap );
+                    }
+                }
+                try
+                {
+                    Thread.sleep( 100 );
+                } catch ( InterruptedException ex )
+                {
+                    return;
+                }
+            }
+        }
+    }
+}
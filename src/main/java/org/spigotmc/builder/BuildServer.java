@@ -0,0 +1,496 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Keeps MigotTools running and builds whatever is asked for over HTTP, so
+ * builds skip the start of the JVM and reuse the loaded Maven, the artifact
+ * cache and the mirrors of the previous ones. The server only listens on the
+ * loopback interface.
+ * <ul>
+ * <li>POST /build?rev=&lt;version&gt; queues a build and answers with its
+ * job</li>
+ * <li>GET /jobs lists all jobs, GET /jobs/&lt;id&gt; shows one</li>
+ * <li>GET /jobs/&lt;id&gt;/log streams the output of the job until it is
+ * done</li>
+ * </ul>
+ * Builds of the same version share their checkouts below the server
+ * directory and never run at the same time, a build of a version that is
+ * being built waits in a queue of its own instead of on a worker. Every version also has a local
+ * Maven repository of its own there, builds of different versions running
+ * at the same time install the same SNAPSHOT coordinates and would
+ * otherwise pick up each other's artifacts. A full queue turns new builds
+ * away with 503. Every job writes its log and build report to the jobs
+ * directory, only the most recent finished jobs are kept.
+ */
+@RequiredArgsConstructor
+public class BuildServer
+{
+
+    private static final int FINISHED_JOBS = 100;
+    private final int port;
+    private final File root;
+    private final int buildNumber;
+    private final int threads;
+    private final AtomicInteger ids = new AtomicInteger();
+    private final Map<Integer, Job> jobs = new LinkedHashMap<Integer, Job>();
+    /**
+     * Jobs waiting for the running build of their version, by directory.
+     */
+    private final Map<String, List<Job>> building = new HashMap<String, List<Job>>();
+    private int waiting;
+    private int queueSize;
+    private ArtifactCache cache;
+    private ThreadPoolExecutor executor;
+
+    public void run(int concurrency, int queueSize) throws IOException
+    {
+        cache = new ArtifactCache( Builder.cacheDir, Builder.cacheSize );
+        if ( Builder.mirrors == null )
+        {
+            Builder.mirrors = new MirrorStore( new File( root, "mirrors" ) );
+        }
+        new File( root, "jobs" ).mkdirs();
+        this.queueSize = queueSize;
+
+        // Every thread prints to the console and, while it works for a job, to the log of the job
+        System.setOut( new PrintStream( new JobOutput( System.out ), true ) );
+        System.setErr( new PrintStream( new JobOutput( System.err ), true ) );
+
+        executor = new ThreadPoolExecutor( concurrency, concurrency, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( queueSize ),
+                new ThreadFactoryBuilder().setNameFormat( "Build Worker #%d" ).build() );
+
+        HttpServer server = HttpServer.create( new InetSocketAddress( "127.0.0.1", port ), 0 );
+        server.createContext( "/build", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                submit( exchange );
+            }
+        } );
+        server.createContext( "/jobs", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                show( exchange );
+            }
+        } );
+        // Log streams stay open for as long as a build runs, every request gets a thread
+        server.setExecutor( Executors.newCachedThreadPool( new ThreadFactoryBuilder().setNameFormat( "HTTP Worker #%d" ).setDaemon( true ).build() ) );
+        server.start();
+        System.out.println( "Build server listening on http://127.0.0.1:" + port + "/, running " + concurrency + " builds at a time with room for "
+                + queueSize + " more in the queue" );
+    }
+
+    private void submit(HttpExchange exchange) throws IOException
+    {
+        if ( !exchange.getRequestMethod().equals( "POST" ) )
+        {
+            respond( exchange, 405, "Use POST to queue a build" );
+            return;
+        }
+        String rev = query( exchange ).get( "rev" );
+        if ( rev == null || rev.isEmpty() )
+        {
+            rev = "latest";
+        }
+        String dir = directory( rev );
+        if ( dir == null )
+        {
+            respond( exchange, 400, "Not a version that can be built: " + rev );
+            return;
+        }
+
+        Job job = new Job( ids.incrementAndGet(), rev, dir );
+        synchronized ( jobs )
+        {
+            prune();
+            jobs.put( job.getId(), job );
+        }
+        if ( !dispatch( job ) )
+        {
+            synchronized ( jobs )
+            {
+                jobs.remove( job.getId() );
+            }
+            respond( exchange, 503, "The build queue is full, try again later" );
+            return;
+        }
+        System.out.println( "Queued job #" + job.getId() + " building " + rev );
+        respond( exchange, 202, json( job ) );
+    }
+
+    /**
+     * Forgets the oldest finished jobs and deletes their files, so the
+     * history does not grow for as long as the server runs.
+     */
+    private void prune()
+    {
+        int finished = 0;
+        for ( Job job : jobs.values() )
+        {
+            if ( job.isDone() )
+            {
+                finished++;
+            }
+        }
+        Iterator<Job> iterator = jobs.values().iterator();
+        while ( finished >= FINISHED_JOBS && iterator.hasNext() )
+        {
+            Job job = iterator.next();
+            if ( job.isDone() )
+            {
+                iterator.remove();
+                job.getLog().delete();
+                job.getReport().delete();
+                job.getReportCsv().delete();
+                finished--;
+            }
+        }
+    }
+
+    private void show(HttpExchange exchange) throws IOException
+    {
+        String[] path = exchange.getRequestURI().getPath().substring( "/jobs".length() ).split( "/" );
+        if ( path.length < 2 )
+        {
+            List<Job> copy;
+            synchronized ( jobs )
+            {
+                copy = new ArrayList<Job>( jobs.values() );
+            }
+            respond( exchange, 200, json( copy ) );
+            return;
+        }
+
+        Job job;
+        try
+        {
+            synchronized ( jobs )
+            {
+                job = jobs.get( Integer.parseInt( path[1] ) );
+            }
+        } catch ( NumberFormatException ex )
+        {
+            job = null;
+        }
+        if ( job == null )
+        {
+            respond( exchange, 404, "No such job" );
+        } else if ( path.length == 2 )
+        {
+            respond( exchange, 200, json( job ) );
+        } else if ( path.length == 3 && path[2].equals( "log" ) )
+        {
+            streamLog( exchange, job );
+        } else
+        {
+            respond( exchange, 404, "Not found" );
+        }
+    }
+
+    /**
+     * Sends the log of the job, following it as it grows until the job is
+     * done.
+     */
+    private void streamLog(HttpExchange exchange, Job job) throws IOException
+    {
+        exchange.getResponseHeaders().set( "Content-Type", "text/plain; charset=UTF-8" );
+        exchange.sendResponseHeaders( 200, 0 );
+        OutputStream out = exchange.getResponseBody();
+        try
+        {
+            while ( !job.getLog().exists() && !job.isDone() )
+            {
+                sleep();
+            }
+            if ( !job.getLog().exists() )
+            {
+                return;
+            }
+            InputStream in = new FileInputStream( job.getLog() );
+            try
+            {
+                byte[] buffer = new byte[ 65536 ];
+                while ( true )
+                {
+                    // Read the flag first, so nothing written before the job finished is missed
+                    boolean done = job.isDone();
+                    int read;
+                    while ( ( read = in.read( buffer ) ) != -1 )
+                    {
+                        out.write( buffer, 0, read );
+                    }
+                    out.flush();
+                    if ( done )
+                    {
+                        break;
+                    }
+                    sleep();
+                }
+            } finally
+            {
+                in.close();
+            }
+        } finally
+        {
+            out.close();
+        }
+    }
+
+    private static void sleep() throws IOException
+    {
+        try
+        {
+            Thread.sleep( 250 );
+        } catch ( InterruptedException ex )
+        {
+            throw new IOException( "Interrupted" );
+        }
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) throws IOException
+    {
+        Map<String, String> query = new HashMap<String, String>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if ( raw != null )
+        {
+            for ( String pair : raw.split( "&" ) )
+            {
+                int split = pair.indexOf( '=' );
+                if ( split != -1 )
+                {
+                    query.put( URLDecoder.decode( pair.substring( 0, split ), "UTF-8" ), URLDecoder.decode( pair.substring( split + 1 ), "UTF-8" ) );
+                }
+            }
+        }
+        return query;
+    }
+
+    private static String json(Object object)
+    {
+        return new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson( object ) + "\n";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes( Charsets.UTF_8 );
+        exchange.getResponseHeaders().set( "Content-Type", ( body.startsWith( "{" ) || body.startsWith( "[" ) ) ? "application/json" : "text/plain; charset=UTF-8" );
+        exchange.sendResponseHeaders( status, bytes.length );
+        OutputStream out = exchange.getResponseBody();
+        try
+        {
+            out.write( bytes );
+        } finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * The directory below the server directory the version is built in, or
+     * null if its name would leave that directory or take the place of one
+     * the server keeps itself.
+     */
+    private static String directory(String rev)
+    {
+        String dir = rev.replaceAll( "[^A-Za-z0-9._-]", "_" );
+        if ( dir.matches( "\\.*" ) || dir.equals( "jobs" ) || dir.equals( "mirrors" ) )
+        {
+            return null;
+        }
+        return dir;
+    }
+
+    /**
+     * Hands the job to a worker, or queues it behind the running build of
+     * the same version, so no worker sits waiting for another.
+     *
+     * @return false if the queue is full
+     */
+    private boolean dispatch(Job job)
+    {
+        synchronized ( building )
+        {
+            List<Job> queue = building.get( job.getDir() );
+            if ( queue != null )
+            {
+                if ( waiting >= queueSize )
+                {
+                    return false;
+                }
+                queue.add( job );
+                waiting++;
+                return true;
+            }
+            try
+            {
+                executor.execute( job );
+            } catch ( RejectedExecutionException ex )
+            {
+                return false;
+            }
+            building.put( job.getDir(), new ArrayList<Job>() );
+            return true;
+        }
+    }
+
+    /**
+     * Hands the next job of the version that finished to a worker.
+     *
+     * @return the job for the calling worker to run itself if no other can
+     * take it, or null
+     */
+    private Job next(Job finished)
+    {
+        synchronized ( building )
+        {
+            List<Job> queue = building.get( finished.getDir() );
+            if ( queue.isEmpty() )
+            {
+                building.remove( finished.getDir() );
+                return null;
+            }
+            Job next = queue.remove( 0 );
+            waiting--;
+            try
+            {
+                executor.execute( next );
+                return null;
+            } catch ( RejectedExecutionException ex )
+            {
+                // The version stays busy, its next job runs on this worker
+                return next;
+            }
+        }
+    }
+
+    @Getter
+    public class Job implements Runnable
+    {
+
+        private final int id;
+        private final String rev;
+        private final transient String dir;
+        private final transient File log;
+        private final transient File report;
+        private final transient File reportCsv;
+        private volatile String state = "queued";
+        private volatile String error;
+        private volatile long queued = System.currentTimeMillis();
+        private volatile long started;
+        private volatile long finished;
+
+        private Job(int id, String rev, String dir)
+        {
+            this.id = id;
+            this.rev = rev;
+            this.dir = dir;
+            this.log = new File( root, "jobs/" + id + ".log" );
+            this.report = new File( root, "jobs/" + id + ".report.json" );
+            this.reportCsv = new File( root, "jobs/" + id + ".report.csv" );
+        }
+
+        public boolean isDone()
+        {
+            return finished != 0;
+        }
+
+        @Override
+        public void run()
+        {
+            Job job = this;
+            while ( job != null )
+            {
+                try
+                {
+                    job.build();
+                } finally
+                {
+                    job = next( job );
+                }
+            }
+        }
+
+        private void build()
+        {
+            try
+            {
+                OutputStream out = new BufferedOutputStream( new FileOutputStream( log ), 65536 );
+                List<BuildReport.Span> spans = Collections.synchronizedList( new ArrayList<BuildReport.Span>() );
+                JobOutput.setLog( out );
+                BuildReport.setReport( spans );
+                try
+                {
+                    state = "running";
+                    started = System.currentTimeMillis();
+                    System.out.println( "Starting job #" + id + " building " + rev );
+                    // Pick up whatever was pushed since the last build
+                    Builder.mirrors.expire();
+                    new Build( rev, buildNumber, new File( root, dir ), cache ).setLocalRepository( new File( root, dir + "/m2" ) ).createPipeline().run( threads );
+                    System.out.println( "Finished job #" + id + " in " + ( System.currentTimeMillis() - started ) / 1000 + " seconds" );
+                    state = "succeeded";
+                } catch ( Throwable t )
+                {
+                    System.err.println( "**** Job #" + id + " failed" );
+                    t.printStackTrace();
+                    error = t.toString();
+                    state = "failed";
+                } finally
+                {
+                    BuildReport.setReport( null );
+                    try
+                    {
+                        BuildReport.write( spans, report, reportCsv );
+                        Builder.hashes.save();
+                    } catch ( IOException ex )
+                    {
+                        System.err.println( "**** Could not write the report of job #" + id + ": " + ex );
+                    }
+                    JobOutput.setLog( null );
+                    out.close();
+                }
+            } catch ( IOException ex )
+            {
+                System.err.println( "**** Could not write the log of job #" + id + ": " + ex );
+                error = ex.toString();
+                state = "failed";
+            } finally
+            {
+                finished = System.currentTimeMillis();
+            }
+        }
+    }
+}
@@ -1,32 +1,27 @@
 package org.spigotmc.builder;
 
-import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
-import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.Funnels;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
 import com.google.common.io.Files;
-import com.google.common.io.Resources;
-import com.google.gson.Gson;
-import difflib.DiffUtils;
-import difflib.Patch;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.security.KeyManagementException;
@@ -34,9 +29,15 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import javax.net.ssl.HostnameVerifier;
@@ -50,24 +51,55 @@ import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 import lombok.RequiredArgsConstructor;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.output.TeeOutputStream;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.ResetCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
 
 public class Builder
 {
 
     public static final String LOG_FILE = "MigotTools.log.txt";
+    public static final String REPORT_JSON = "MigotTools.report.json";
+    public static final String REPORT_CSV = "MigotTools.report.csv";
     public static final boolean IS_WINDOWS = System.getProperty( "os.name" ).startsWith( "Windows" );
     public static final File CWD = new File( "." );
-    private static boolean dontUpdate;
-    private static boolean skipCompile;
-    private static boolean generateSource;
-    private static boolean generateDocs;
-    private static boolean dev;
+    /**
+     * How long the output of a process which exited may stay open, a process
+     * it started and left behind may hold on to it forever.
+     */
+    private static final long PUMP_TIMEOUT = 30;
+    static boolean dontUpdate;
+    static boolean skipCompile;
+    static boolean generateSource;
+    static boolean generateDocs;
+    static boolean dev;
+    static int gitThreads;
+    static File cacheDir;
+    static long cacheSize;
+    static int decompileThreads;
+    static boolean targetedDecompile;
+    static boolean embeddedMaven;
+    static int mavenThreads;
+    static MirrorStore mirrors;
+    static HashIndex hashes = new HashIndex( new File( "work/hashes.json" ) );
+    static ResourceGovernor resources = new ResourceGovernor( 0, 0, 0 );
+    /**
+     * Shared by all child processes, two pumps for every process allowed to
+     * run at once.
+     */
+    private static ExecutorService outputPumps;
+    private static Semaphore processSlots;
+
+    static
+    {
+        setProcessLimit( resources.getCores() );
+    }
 
     public static void main(String[] args) throws Exception
     {
@@ -96,7 +128,25 @@ public class Builder
         OptionSpec<Void> generateSourceFlag = parser.accepts( "generate-source" );
         OptionSpec<Void> generateDocsFlag = parser.accepts( "generate-docs" );
         OptionSpec<Void> devFlag = parser.accepts( "dev" );
-        OptionSpec<String> jenkinsVersion = parser.accepts( "rev" ).withRequiredArg().defaultsTo( "latest" );
+        OptionSpec<Void> targetedDecompileFlag = parser.accepts( "targeted-decompile" );
+        OptionSpec<Void> embeddedMavenFlag = parser.accepts( "embedded-maven" );
+        OptionSpec<String> jenkinsVersion = parser.accepts( "rev" ).withRequiredArg().withValuesSeparatedBy( ',' ).defaultsTo( "latest" );
+        OptionSpec<Integer> gitThreadsOption = parser.accepts( "git-threads" ).withRequiredArg().ofType( Integer.class ).defaultsTo( 4 );
+        OptionSpec<File> cacheDirOption = parser.accepts( "cache-dir" ).withRequiredArg().ofType( File.class ).defaultsTo( new File( "work/cache" ) );
+        OptionSpec<Long> cacheSizeOption = parser.accepts( "cache-size" ).withRequiredArg().ofType( Long.class ).defaultsTo( 4096L );
+        OptionSpec<Integer> decompileThreadsOption = parser.accepts( "decompile-threads" ).withRequiredArg().ofType( Integer.class );
+        OptionSpec<File> mirrorDirOption = parser.accepts( "mirror-dir" ).withRequiredArg().ofType( File.class );
+        OptionSpec<Integer> mavenThreadsOption = parser.accepts( "maven-threads" ).withRequiredArg().ofType( Integer.class );
+        OptionSpec<File> batchDirOption = parser.accepts( "batch-dir" ).withRequiredArg().ofType( File.class ).defaultsTo( new File( "batch" ) );
+        OptionSpec<Integer> batchThreadsOption = parser.accepts( "batch-threads" ).withRequiredArg().ofType( Integer.class ).defaultsTo( 2 );
+        OptionSpec<Integer> serverPortOption = parser.accepts( "server" ).withOptionalArg().ofType( Integer.class ).defaultsTo( 8089 );
+        OptionSpec<File> serverDirOption = parser.accepts( "server-dir" ).withRequiredArg().ofType( File.class ).defaultsTo( new File( "server" ) );
+        OptionSpec<Integer> serverBuildsOption = parser.accepts( "server-builds" ).withRequiredArg().ofType( Integer.class ).defaultsTo( 1 );
+        OptionSpec<Integer> queueSizeOption = parser.accepts( "queue-size" ).withRequiredArg().ofType( Integer.class ).defaultsTo( 16 );
+        OptionSpec<Integer> threads = parser.accepts( "threads" ).withRequiredArg().ofType( Integer.class );
+        OptionSpec<Integer> coresOption = parser.accepts( "cores" ).withRequiredArg().ofType( Integer.class ).defaultsTo( 0 );
+        OptionSpec<Long> memoryOption = parser.accepts( "memory" ).withRequiredArg().ofType( Long.class ).defaultsTo( 0L );
+        OptionSpec<Integer> childHeapOption = parser.accepts( "child-heap" ).withRequiredArg().ofType( Integer.class ).defaultsTo( 0 );
 
         OptionSet options = parser.parse( args );
 
@@ -109,8 +159,25 @@ public class Builder
         generateSource = options.has( generateSourceFlag );
         generateDocs = options.has( generateDocsFlag );
         dev = options.has( devFlag );
+        targetedDecompile = options.has( targetedDecompileFlag );
+        embeddedMaven = options.has( embeddedMavenFlag );
+        resources = new ResourceGovernor( options.valueOf( coresOption ), options.valueOf( memoryOption ), options.valueOf( childHeapOption ) );
+        mavenThreads = ( options.has( mavenThreadsOption ) ) ? options.valueOf( mavenThreadsOption ) : resources.mavenThreads();
+        int stageThreads = ( options.has( threads ) ) ? options.valueOf( threads ) : resources.getCores();
+        if ( options.has( mirrorDirOption ) )
+        {
+            mirrors = new MirrorStore( options.valueOf( mirrorDirOption ) );
+        }
+        gitThreads = options.valueOf( gitThreadsOption );
+        cacheDir = options.valueOf( cacheDirOption );
+        decompileThreads = ( options.has( decompileThreadsOption ) ) ? options.valueOf( decompileThreadsOption ) : resources.decompileThreads();
+        cacheSize = options.valueOf( cacheSizeOption ) * 1024 * 1024;
+        int builds = ( options.has( serverPortOption ) ) ? options.valueOf( serverBuildsOption )
+                : ( options.valuesOf( jenkinsVersion ).size() > 1 ) ? options.valueOf( batchThreadsOption ) : 1;
+        setProcessLimit( builds * Math.max( stageThreads, decompileThreads ) );
 
         logOutput();
+        System.out.println( "Using " + resources );
 
         if ( Float.parseFloat( System.getProperty( "java.class.version" ) ) < 51.0 )
         {
@@ -123,8 +190,8 @@ public class Builder
             runProcess( CWD, "bash", "-c", "exit" );
         } catch ( Exception ex )
         {
-            System.out.println( "You must run this jar through bash (msysgit)" );
-            System.exit( 1 );
+            // Only needed if the patches of Migot can not be applied without it
+            System.out.println( "bash was not found, if the build needs it run this jar through bash (msysgit)" );
         }
 
         try
@@ -144,290 +211,37 @@ public class Builder
             runProcess( CWD, "git", "config", "--global", "user.email", "unconfigured@null.spigotmc.org" );
         }
 
-        File workDir = new File( "work" );
-        workDir.mkdir();
-
-        File bukkit = new File( "Bukkit" );
-        if ( !bukkit.exists() )
-        {
-            clone( "https://hub.spigotmc.org/stash/scm/spigot/bukkit.git", bukkit );
-        }
-
-        File craftBukkit = new File( "CraftBukkit" );
-        if ( !craftBukkit.exists() )
-        {
-            clone( "https://hub.spigotmc.org/stash/scm/spigot/craftbukkit.git", craftBukkit );
-        }
-
-        File migot = new File( "Migot" );
-        if ( !migot.exists() )
+        if ( options.has( serverPortOption ) )
         {
-            clone( "https://github.com/Poweruser/Migot.git", migot );
-        }
-
-        File buildData = new File( "BuildData" );
-        if ( !buildData.exists() )
-        {
-            clone( "https://hub.spigotmc.org/stash/scm/spigot/builddata.git", buildData );
-        }
-
-        File maven;
-        String m2Home = System.getenv( "M2_HOME" );
-        if ( m2Home == null || !( maven = new File( m2Home ) ).exists() )
-        {
-            maven = new File( "apache-maven-3.2.5" );
-
-            if ( !maven.exists() )
-            {
-                System.out.println( "Maven does not exist, downloading. Please wait." );
-
-                File mvnTemp = new File( "mvn.zip" );
-                mvnTemp.deleteOnExit();
-
-                download( "http://static.spigotmc.org/maven/apache-maven-3.2.5-bin.zip", mvnTemp );
-                unzip( mvnTemp, new File( "." ) );
-            }
-        }
-
-        String mvn = maven.getAbsolutePath() + "/bin/mvn";
-
-        Git bukkitGit = Git.open( bukkit );
-        Git craftBukkitGit = Git.open( craftBukkit );
-        Git migotGit = Git.open( migot );
-        Git buildGit = Git.open( buildData );
-
-        BuildInfo buildInfo = new BuildInfo( "Dev Build", "Development", 0, new BuildInfo.Refs( "master", "master", "master", "master" ) );
-
-        if ( !dontUpdate )
-        {
-            if ( !dev )
-            {
-                String askedVersion = options.valueOf( jenkinsVersion );
-                System.out.println( "Attempting to build version: '" + askedVersion + "' use --rev <version> to override" );
-
-                String verInfo;
-                try
-                {
-                    verInfo = get( "https://github.com/Poweruser/Migot/wiki/versions/" + askedVersion + ".json" );
-                } catch ( IOException ex )
-                {
-                    System.err.println( "Could not get version " + askedVersion + " does it exist? Try another version or use 'latest'" );
-                    ex.printStackTrace();
-                    return;
-                }
-                System.out.println( "Found version" );
-                System.out.println( verInfo );
-
-                buildInfo = new Gson().fromJson( verInfo, BuildInfo.class );
-
-                if ( buildNumber != -1 && buildInfo.getToolsVersion() != -1 && buildNumber < buildInfo.getToolsVersion() )
-                {
-                    System.err.println( "**** Your BuildTools is out of date and will not build the requested version. Please grab a new copy from http://www.spigotmc.org/" );
-                    System.exit( 1 );
-                }
-            }
-
-            pull( buildGit, buildInfo.getRefs().getBuildData() );
-            pull( bukkitGit, buildInfo.getRefs().getBukkit() );
-            pull( craftBukkitGit, buildInfo.getRefs().getCraftBukkit() );
-            pull( migotGit, buildInfo.getRefs().getMigot() );
-        }
-
-        VersionInfo versionInfo = new Gson().fromJson(
-                Resources.toString( new File( "BuildData/info.json" ).toURI().toURL(), Charsets.UTF_8 ),
-                VersionInfo.class
-        );
-        // Default to 1.8 builds.
-        if ( versionInfo == null )
-        {
-            versionInfo = new VersionInfo( "1.8", "bukkit-1.8.at", "bukkit-1.8-cl.csrg", "bukkit-1.8-members.csrg", "package.srg", null );
-        }
-        System.out.println( "Attempting to build Minecraft with details: " + versionInfo );
-
-        File vanillaJar = new File( workDir, "minecraft_server." + versionInfo.getMinecraftVersion() + ".jar" );
-        if ( !vanillaJar.exists() || !checkHash( vanillaJar, versionInfo ) )
-        {
-            download( String.format( "https://s3.amazonaws.com/Minecraft.Download/versions/%1$s/minecraft_server.%1$s.jar", versionInfo.getMinecraftVersion() ), vanillaJar );
-        }
-        if ( !checkHash( vanillaJar, versionInfo ) )
-        {
-            System.err.println( "**** Could not download clean Minecraft jar, giving up." );
+            new BuildServer( options.valueOf( serverPortOption ), options.valueOf( serverDirOption ), buildNumber, stageThreads )
+                    .run( options.valueOf( serverBuildsOption ), options.valueOf( queueSizeOption ) );
             return;
         }
 
-        Iterable<RevCommit> mappings = buildGit.log()
-                .addPath( "mappings/" + versionInfo.getAccessTransforms() )
-                .addPath( "mappings/" + versionInfo.getClassMappings() )
-                .addPath( "mappings/" + versionInfo.getMemberMappings() )
-                .addPath( "mappings/" + versionInfo.getPackageMappings() )
-                .setMaxCount( 1 ).call();
-
-        Hasher mappingsHash = Hashing.md5().newHasher();
-        for ( RevCommit rev : mappings )
-        {
-            mappingsHash.putString( rev.getName(), Charsets.UTF_8 );
-        }
-        String mappingsVersion = mappingsHash.hash().toString().substring( 24 ); // Last 8 chars
-
-        File finalMappedJar = new File( workDir, "mapped." + mappingsVersion + ".jar" );
-        if ( !finalMappedJar.exists() )
-        {
-            System.out.println( "Final mapped jar: " + finalMappedJar + " does not exist, creating!" );
-
-            File clMappedJar = new File( finalMappedJar + "-cl" );
-            File mMappedJar = new File( finalMappedJar + "-m" );
-
-            runProcess( CWD, "java", "-jar", "BuildData/bin/SpecialSource-2.jar", "map", "-i", vanillaJar.getPath(), "-m", "BuildData/mappings/" + versionInfo.getClassMappings(), "-o", clMappedJar.getPath() );
-
-            runProcess( CWD, "java", "-jar", "BuildData/bin/SpecialSource-2.jar", "map", "-i", clMappedJar.getPath(),
-                    "-m", "BuildData/mappings/" + versionInfo.getMemberMappings(), "-o", mMappedJar.getPath() );
-
-            runProcess( CWD, "java", "-jar", "BuildData/bin/SpecialSource.jar", "--kill-lvt", "-i", mMappedJar.getPath(), "--access-transformer", "BuildData/mappings/" + versionInfo.getAccessTransforms(),
-                    "-m", "BuildData/mappings/" + versionInfo.getPackageMappings(), "-o", finalMappedJar.getPath() );
-        }
-
-        runProcess( CWD, "sh", mvn, "install:install-file", "-Dfile=" + finalMappedJar, "-Dpackaging=jar", "-DgroupId=org.spigotmc",
-                "-DartifactId=minecraft-server", "-Dversion=" + versionInfo.getMinecraftVersion() + "-SNAPSHOT" );
-
-        File decompileDir = new File( workDir, "decompile-" + mappingsVersion );
-        if ( !decompileDir.exists() )
-        {
-            decompileDir.mkdir();
-
-            File clazzDir = new File( decompileDir, "classes" );
-            unzip( finalMappedJar, clazzDir, new Predicate<String>()
-            {
-
-                @Override
-                public boolean apply(String input)
-                {
-                    return input.startsWith( "net/minecraft/server" );
-                }
-            } );
-
-            runProcess( CWD, "java", "-jar", "BuildData/bin/fernflower.jar", "-dgs=1", "-hdc=0", "-rbr=0", "-asc=1", "-udv=0", clazzDir.getPath(), decompileDir.getPath() );
-        }
-
-        System.out.println( "Applying CraftBukkit Patches" );
-        File nmsDir = new File( craftBukkit, "src/main/java/net" );
-        if ( nmsDir.exists() )
-        {
-            System.out.println( "Backing up NMS dir" );
-            FileUtils.moveDirectory( nmsDir, new File( workDir, "nms.old." + System.currentTimeMillis() ) );
-        }
-        File patchDir = new File( craftBukkit, "nms-patches" );
-        for ( File file : patchDir.listFiles() )
-        {
-            String targetFile = "net/minecraft/server/" + file.getName().replaceAll( ".patch", ".java" );
-
-            File clean = new File( decompileDir, targetFile );
-            File t = new File( nmsDir.getParentFile(), targetFile );
-            t.getParentFile().mkdirs();
-
-            System.out.println( "Patching with " + file.getName() );
-
-            List<String> readFile = Files.readLines( file, Charsets.UTF_8 );
-
-            // Manually append prelude if it is not found in the first few lines.
-            boolean preludeFound = false;
-            for ( int i = 0; i < Math.min( 3, readFile.size() ); i++ )
-            {
-                if ( readFile.get( i ).startsWith( "+++" ) )
-                {
-                    preludeFound = true;
-                    break;
-                }
-            }
-            if ( !preludeFound )
-            {
-                readFile.add( 0, "+++" );
-            }
-
-            Patch parsedPatch = DiffUtils.parseUnifiedDiff( readFile );
-            List<?> modifiedLines = DiffUtils.patch( Files.readLines( clean, Charsets.UTF_8 ), parsedPatch );
-
-            BufferedWriter bw = new BufferedWriter( new FileWriter( t ) );
-            for ( String line : (List<String>) modifiedLines )
-            {
-                bw.write( line );
-                bw.newLine();
-            }
-            bw.close();
-        }
-        File tmpNms = new File( craftBukkit, "tmp-nms" );
-        FileUtils.copyDirectory( nmsDir, tmpNms );
-
-        craftBukkitGit.branchDelete().setBranchNames( "patched" ).setForce( true ).call();
-        craftBukkitGit.checkout().setCreateBranch( true ).setForce( true ).setName( "patched" ).call();
-        craftBukkitGit.add().addFilepattern( "src/main/java/net/" ).call();
-        craftBukkitGit.commit().setMessage( "CraftBukkit $ " + new Date() ).call();
-        craftBukkitGit.checkout().setName( buildInfo.getRefs().getCraftBukkit() ).call();
-
-        FileUtils.moveDirectory( tmpNms, nmsDir );
-
-        File spigotApi = new File( migot, "Bukkit" );
-        if ( !spigotApi.exists() )
-        {
-            clone( "file://" + bukkit.getAbsolutePath(), spigotApi );
-        }
-        File migotServer = new File( migot, "CraftBukkit" );
-        if ( !migotServer.exists() )
-        {
-            clone( "file://" + craftBukkit.getAbsolutePath(), migotServer );
-        }
-
-        // Git spigotApiGit = Git.open( spigotApi );
-        // Git spigotServerGit = Git.open( spigotServer );
-        if ( !skipCompile )
-        {
-            System.out.println( "Compiling Bukkit" );
-            runProcess( bukkit, "sh", mvn, "clean", "install" );
-            if ( generateDocs )
-            {
-                runProcess( bukkit, "sh", mvn, "javadoc:jar" );
-            }
-            if ( generateSource )
-            {
-                runProcess( bukkit, "sh", mvn, "source:jar" );
-            }
-
-            System.out.println( "Compiling CraftBukkit" );
-            runProcess( craftBukkit, "sh", mvn, "clean", "install" );
-        }
-
+        List<String> versions = options.valuesOf( jenkinsVersion );
         try
         {
-            runProcess( migot, "bash", "applyPatches.sh" );
-            System.out.println( "*** Spigot and Migot patches applied!" );
-
-            if ( !skipCompile )
+            if ( versions.size() > 1 )
             {
-                System.out.println( "Compiling Migot & Spigot-API" );
-                runProcess( migot, "sh", mvn, "clean", "install" );
+                new BatchBuild( versions, buildNumber, options.valueOf( batchDirOption ) ).run( options.valueOf( batchThreadsOption ), stageThreads );
+            } else
+            {
+                new Build( versions.get( 0 ), buildNumber ).createPipeline().run( stageThreads );
             }
-        } catch ( Exception ex )
-        {
-            System.err.println( "Error compiling Migot, are you running this jar via msysgit?" );
-            ex.printStackTrace();
-            System.exit( 1 );
-        }
-
-        for ( int i = 0; i < 35; i++ )
+        } finally
         {
-            System.out.println( " " );
+            hashes.save();
+            BuildReport.write( new File( REPORT_JSON ), new File( REPORT_CSV ) );
         }
+    }
 
-        if ( !skipCompile )
-        {
-            System.out.println( "Success! Everything compiled successfully. Copying final .jar files now." );
-            copyJar( "CraftBukkit/target", "craftbukkit", "craftbukkit-" + versionInfo.getMinecraftVersion() + ".jar" );
-            copyJar( "Migot/Migot-Server/target", "migot", "migot-" + versionInfo.getMinecraftVersion() + ".jar" );
-        }
+    static boolean checkHash(File vanillaJar, VersionInfo versionInfo) throws IOException
+    {
+        return checkHash( hashes.md5( vanillaJar ), versionInfo );
     }
 
-    private static boolean checkHash(File vanillaJar, VersionInfo versionInfo) throws IOException
+    static boolean checkHash(String hash, VersionInfo versionInfo)
     {
-        String hash = Files.hash( vanillaJar, Hashing.md5() ).toString();
         if ( !dev && versionInfo.getMinecraftHash() != null && !hash.equals( versionInfo.getMinecraftHash() ) )
         {
             System.err.println( "**** Warning, Minecraft jar hash of " + hash + " does not match stored hash of " + versionInfo.getMinecraftHash() );
@@ -460,9 +274,9 @@ public class Builder
         }
     }
 
-    public static void copyJar(String path, final String jarPrefix, String outJarName) throws Exception
+    public static void copyJar(File dir, final String jarPrefix, File outJar) throws Exception
     {
-        File[] files = new File( path ).listFiles( new FilenameFilter()
+        File[] files = dir.listFiles( new FilenameFilter()
         {
             @Override
             public boolean accept(File dir, String name)
@@ -472,29 +286,93 @@ public class Builder
         } );
         for ( File file : files )
         {
-            System.out.println( "Copying " + file.getName() + " to " + CWD.getAbsolutePath() );
-            Files.copy( file, new File( CWD, outJarName ) );
-            System.out.println( "  - Saved as " + outJarName );
+            System.out.println( "Copying " + file.getName() + " to " + outJar.getAbsoluteFile().getParent() );
+            BuildReport.Span span = BuildReport.start( "copy", outJar.getName() );
+            try
+            {
+                Files.copy( file, outJar );
+                span.succeeded();
+            } finally
+            {
+                span.end();
+            }
+            System.out.println( "  - Saved as " + outJar.getName() );
         }
     }
 
-    public static void pull(Git repo, String ref) throws Exception
+    public static void replaceFile(File source, File target) throws IOException
     {
-        System.out.println( "Pulling updates for " + repo.getRepository().getDirectory() );
+        if ( !source.renameTo( target ) )
+        {
+            // Windows refuses to rename onto an existing file
+            target.delete();
+            if ( !source.renameTo( target ) )
+            {
+                throw new IOException( "Could not move " + source + " to " + target );
+            }
+        }
+    }
 
-        repo.reset().setRef( "origin/master" ).setMode( ResetCommand.ResetType.HARD ).call();
-        repo.fetch().call();
+    public static void pull(Git repo, String ref) throws Exception
+    {
+        pull( repo, ref, NullProgressMonitor.INSTANCE );
+    }
 
-        System.out.println( "Successfully fetched updates!" );
+    public static void pull(Git repo, String ref, ProgressMonitor monitor) throws Exception
+    {
+        System.out.println( "Pulling updates for " + repo.getRepository().getDirectory() );
+        BuildReport.Span span = BuildReport.start( "pull", repo.getRepository().getDirectory().getPath() );
+        try
+        {
+            Repository repository = repo.getRepository();
+            ObjectId pinned = ( ObjectId.isId( ref ) ) ? ObjectId.fromString( ref ) : null;
+            if ( pinned != null && repository.hasObject( pinned ) )
+            {
+                System.out.println( "Pinned commit " + ref + " is already present, not fetching " + repository.getDirectory() );
+            } else if ( mirrors != null )
+            {
+                mirrors.fetch( repo, monitor );
+                System.out.println( "Successfully fetched updates for " + repository.getDirectory() );
+            } else if ( pinned != null || ref.equals( "master" ) )
+            {
+                // Only the branch the ref lives on, pinned builds are cut from master
+                repo.fetch().setRefSpecs( new RefSpec( "+refs/heads/master:refs/remotes/origin/master" ) ).setProgressMonitor( monitor ).call();
+                if ( pinned != null && !repository.hasObject( pinned ) )
+                {
+                    System.out.println( "Pinned commit " + ref + " is not on master, fetching all branches" );
+                    repo.fetch().setProgressMonitor( monitor ).call();
+                }
+                System.out.println( "Successfully fetched updates for " + repository.getDirectory() );
+            } else
+            {
+                repo.fetch().setProgressMonitor( monitor ).call();
+                System.out.println( "Successfully fetched updates for " + repository.getDirectory() );
+            }
 
-        repo.reset().setRef( ref ).setMode( ResetCommand.ResetType.HARD ).call();
-        if ( ref.equals( "master" ) )
+            repo.reset().setRef( ( ref.equals( "master" ) ) ? "origin/master" : ref ).setMode( ResetCommand.ResetType.HARD ).call();
+            span.succeeded();
+        } finally
         {
-            repo.reset().setRef( "origin/master" ).setMode( ResetCommand.ResetType.HARD ).call();
+            span.end();
         }
         System.out.println( "Checked out: " + ref );
     }
 
+    /**
+     * Sizes the pool pumping the output of child processes for the given
+     * number of processes running at once. Further processes wait for a
+     * slot, a process whose output nobody reads would block on a full pipe.
+     */
+    static synchronized void setProcessLimit(int processes)
+    {
+        if ( outputPumps != null )
+        {
+            outputPumps.shutdown();
+        }
+        outputPumps = Executors.newFixedThreadPool( 2 * processes, new ThreadFactoryBuilder().setNameFormat( "Output Pump #%d" ).setDaemon( true ).build() );
+        processSlots = new Semaphore( processes, true );
+    }
+
     public static int runProcess(File workDir, String... command) throws Exception
     {
         ProcessBuilder pb = new ProcessBuilder( command );
@@ -502,15 +380,40 @@ public class Builder
         pb.environment().put( "JAVA_HOME", System.getProperty( "java.home" ) );
         if ( !pb.environment().containsKey( "MAVEN_OPTS" ) )
         {
-            pb.environment().put( "MAVEN_OPTS", "-Xmx1024M" );
+            pb.environment().put( "MAVEN_OPTS", resources.heapOption() );
+        }
+
+        ExecutorService pumps;
+        Semaphore slots;
+        synchronized ( Builder.class )
+        {
+            pumps = outputPumps;
+            slots = processSlots;
         }
 
-        final Process ps = pb.start();
+        int status;
+        slots.acquire();
+        BuildReport.Span span = BuildReport.start( "process", Joiner.on( ' ' ).join( command ) );
+        try
+        {
+            final Process ps = pb.start();
 
-        new Thread( new StreamRedirector( ps.getInputStream(), System.out ) ).start();
-        new Thread( new StreamRedirector( ps.getErrorStream(), System.err ) ).start();
+            Future<?> out = pumps.submit( JobOutput.bind( new StreamRedirector( ps.getInputStream(), System.out ) ) );
+            Future<?> err = pumps.submit( JobOutput.bind( new StreamRedirector( ps.getErrorStream(), System.err ) ) );
 
-        int status = ps.waitFor();
+            status = ps.waitFor();
+            // Make sure everything the process printed is out before anyone looks at the result
+            drain( out, ps.getInputStream(), command );
+            drain( err, ps.getErrorStream(), command );
+            if ( status == 0 )
+            {
+                span.succeeded();
+            }
+        } finally
+        {
+            slots.release();
+            span.end();
+        }
 
         if ( status != 0 )
         {
@@ -520,28 +423,77 @@ public class Builder
         return status;
     }
 
+    /**
+     * Waits for the pump of an exited process to reach the end of its output,
+     * giving up on it after a while.
+     */
+    private static void drain(Future<?> pump, InputStream stream, String[] command) throws Exception
+    {
+        try
+        {
+            pump.get( PUMP_TIMEOUT, TimeUnit.SECONDS );
+        } catch ( TimeoutException ex )
+        {
+            System.err.println( "Output of " + Arrays.toString( command ) + " still open " + PUMP_TIMEOUT + " seconds after it exited, a process it started may hold it, no longer reading it" );
+            pump.cancel( true );
+            stream.close();
+        }
+    }
+
+    /**
+     * Copies the output of a child process to one of our streams. Bytes are
+     * forwarded as they are without decoding, a whole buffer of complete lines
+     * at a time so the output of processes running side by side does not get
+     * mixed up within a line.
+     */
     @RequiredArgsConstructor
-    private static class StreamRedirector implements Runnable
+    static class StreamRedirector implements Callable<Void>
     {
 
         private final InputStream in;
         private final PrintStream out;
 
         @Override
-        public void run()
+        public Void call() throws IOException
         {
-            BufferedReader br = new BufferedReader( new InputStreamReader( in ) );
+            byte[] buffer = new byte[ 65536 ];
+            int length = 0;
             try
             {
-                String line;
-                while ( ( line = br.readLine() ) != null )
+                int read;
+                while ( ( read = in.read( buffer, length, buffer.length - length ) ) != -1 )
                 {
-                    out.println( line );
+                    int end = length + read;
+                    int lineEnd = end;
+                    while ( lineEnd > length && buffer[lineEnd - 1] != '\n' )
+                    {
+                        lineEnd--;
+                    }
+                    if ( lineEnd == length && end < buffer.length )
+                    {
+                        // No line finished yet, and room to wait for the rest of it
+                        length = end;
+                        continue;
+                    }
+                    if ( lineEnd == length )
+                    {
+                        lineEnd = end;
+                    }
+                    out.write( buffer, 0, lineEnd );
+                    length = end - lineEnd;
+                    System.arraycopy( buffer, lineEnd, buffer, 0, length );
                 }
-            } catch ( IOException ex )
+                if ( length > 0 )
+                {
+                    out.write( buffer, 0, length );
+                    out.println();
+                }
+                out.flush();
+            } finally
             {
-                throw Throwables.propagate( ex );
+                in.close();
             }
+            return null;
         }
     }
 
@@ -552,53 +504,96 @@ public class Builder
 
     public static void unzip(File zipFile, File targetFolder, Predicate<String> filter) throws IOException
     {
-        targetFolder.mkdir();
-        ZipFile zip = new ZipFile( zipFile );
+        BuildReport.Span span = BuildReport.start( "unzip", zipFile.getPath() );
+        try
+        {
+            extract( zipFile, targetFolder, filter );
+            span.succeeded();
+        } finally
+        {
+            span.end();
+        }
+    }
 
-        for ( Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); )
+    private static void extract(File zipFile, File targetFolder, Predicate<String> filter) throws IOException
+    {
+        targetFolder.mkdir();
+        if ( new ZipExtractor( zipFile ).extract( targetFolder, filter, resources.getCores() ) )
         {
-            ZipEntry entry = entries.nextElement();
+            return;
+        }
 
-            if ( filter != null )
+        System.out.println( "Extracting " + zipFile + " sequentially" );
+        ZipFile zip = new ZipFile( zipFile );
+        try
+        {
+            for ( Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); )
             {
-                if ( !filter.apply( entry.getName() ) )
+                ZipEntry entry = entries.nextElement();
+
+                if ( filter != null )
                 {
-                    continue;
+                    if ( !filter.apply( entry.getName() ) )
+                    {
+                        continue;
+                    }
                 }
-            }
 
-            File outFile = new File( targetFolder, entry.getName() );
+                File outFile = new File( targetFolder, entry.getName() );
 
-            if ( entry.isDirectory() )
-            {
-                outFile.mkdirs();
-                continue;
-            }
-            if ( outFile.getParentFile() != null )
-            {
-                outFile.getParentFile().mkdirs();
-            }
+                if ( entry.isDirectory() )
+                {
+                    outFile.mkdirs();
+                    continue;
+                }
+                if ( outFile.getParentFile() != null )
+                {
+                    outFile.getParentFile().mkdirs();
+                }
 
-            InputStream is = zip.getInputStream( entry );
-            OutputStream os = new FileOutputStream( outFile );
-            try
-            {
-                ByteStreams.copy( is, os );
-            } finally
-            {
-                is.close();
-                os.close();
+                InputStream is = zip.getInputStream( entry );
+                OutputStream os = new FileOutputStream( outFile );
+                try
+                {
+                    ByteStreams.copy( is, os );
+                } finally
+                {
+                    is.close();
+                    os.close();
+                }
             }
-
-            System.out.println( "Extracted: " + outFile );
+        } finally
+        {
+            zip.close();
         }
     }
 
-    public static void clone(String url, File target) throws GitAPIException
+    public static void clone(String url, File target) throws GitAPIException, IOException
+    {
+        clone( url, target, NullProgressMonitor.INSTANCE );
+    }
+
+    public static void clone(String url, File target, ProgressMonitor monitor) throws GitAPIException, IOException
     {
         System.out.println( "Starting clone of " + url + " to " + target );
 
-        Git result = Git.cloneRepository().setURI( url ).setDirectory( target ).call();
+        Git result;
+        BuildReport.Span span = BuildReport.start( "clone", url );
+        try
+        {
+            if ( mirrors != null )
+            {
+                mirrors.clone( url, target, monitor );
+                result = Git.open( target );
+            } else
+            {
+                result = Git.cloneRepository().setURI( url ).setDirectory( target ).setProgressMonitor( monitor ).call();
+            }
+            span.succeeded();
+        } finally
+        {
+            span.end();
+        }
 
         try
         {
@@ -615,17 +610,126 @@ public class Builder
         return Iterables.getOnlyElement( repo.log().setMaxCount( 1 ).call() ).getName();
     }
 
-    public static File download(String url, File target) throws IOException
+    public static String download(String url, File target) throws IOException
+    {
+        return download( url, target, null );
+    }
+
+    /**
+     * Streams the url to a partial file next to target, hashing it on the
+     * way, and moves it into place once complete. An interrupted transfer is
+     * resumed with an HTTP range request where the server supports it.
+     *
+     * @param expectedMd5 hash the download has to match, or null to accept
+     * anything
+     * @return the md5 of the downloaded file
+     */
+    public static String download(String url, File target, String expectedMd5) throws IOException
     {
         System.out.println( "Starting download of " + url );
+        BuildReport.Span span = BuildReport.start( "download", url );
+        try
+        {
+            String hash = download( url, target, expectedMd5, new File( target.getPath() + ".part" ) );
+            span.succeeded();
+            return hash;
+        } finally
+        {
+            span.end();
+        }
+    }
+
+    private static String download(String url, File target, String expectedMd5, File part) throws IOException
+    {
+        IOException failure = null;
+        for ( int attempt = 0; attempt < 3; attempt++ )
+        {
+            String hash;
+            try
+            {
+                hash = downloadPart( url, part );
+            } catch ( IOException ex )
+            {
+                System.err.println( "Download of " + url + " interrupted (" + ex + "), retrying" );
+                failure = ex;
+                continue;
+            }
+
+            if ( expectedMd5 != null && !hash.equals( expectedMd5 ) )
+            {
+                part.delete();
+                throw new IOException( "Downloaded file " + target + " has md5 " + hash + ", expected " + expectedMd5 );
+            }
+            replaceFile( part, target );
+
+            System.out.println( "Downloaded file: " + target + " with md5: " + hash );
+            return hash;
+        }
+        throw failure;
+    }
+
+    private static String downloadPart(String url, File part) throws IOException
+    {
+        URLConnection con = new URL( url ).openConnection();
+        con.setConnectTimeout( 5000 );
+        con.setReadTimeout( 30000 );
+
+        boolean resume = false;
+        long offset = part.length();
+        if ( offset > 0 && con instanceof HttpURLConnection )
+        {
+            con.setRequestProperty( "Range", "bytes=" + offset + "-" );
+            int status = ( (HttpURLConnection) con ).getResponseCode();
+            if ( status == 416 )
+            {
+                // Range not satisfiable, whatever we have is of no use
+                part.delete();
+                throw new IOException( "Server rejected resuming at " + offset + " bytes" );
+            }
+            resume = status == HttpURLConnection.HTTP_PARTIAL;
+        }
 
-        byte[] bytes = Resources.toByteArray( new URL( url ) );
+        Hasher hasher = Hashing.md5().newHasher();
+        if ( resume )
+        {
+            System.out.println( "Resuming download at " + offset + " bytes" );
+            Files.asByteSource( part ).copyTo( Funnels.asOutputStream( hasher ) );
+        }
 
-        System.out.println( "Downloaded file: " + target + " with md5: " + Hashing.md5().hashBytes( bytes ).toString() );
+        // getContentLength is an int and overflows past 2GB, so read the header directly
+        String lengthHeader = con.getHeaderField( "Content-Length" );
+        long expected = ( lengthHeader == null ) ? -1 : Long.parseLong( lengthHeader.trim() );
+        long received = 0;
 
-        Files.write( bytes, target );
+        InputStream in = con.getInputStream();
+        try
+        {
+            OutputStream out = new FileOutputStream( part, resume );
+            try
+            {
+                byte[] buffer = new byte[ 65536 ];
+                int read;
+                while ( ( read = in.read( buffer ) ) != -1 )
+                {
+                    out.write( buffer, 0, read );
+                    hasher.putBytes( buffer, 0, read );
+                    received += read;
+                }
+            } finally
+            {
+                out.close();
+            }
+        } finally
+        {
+            in.close();
+        }
+
+        if ( expected != -1 && received != expected )
+        {
+            throw new IOException( "Connection closed after " + received + " of " + expected + " bytes" );
+        }
 
-        return target;
+        return hasher.hash().toString();
     }
 
     public static void disableHttpsCertificateCheck()
@@ -686,7 +790,7 @@ public class Builder
     {
         try
         {
-            final OutputStream logOut = new BufferedOutputStream( new FileOutputStream( LOG_FILE ) );
+            final OutputStream logOut = new BufferedOutputStream( new FileOutputStream( LOG_FILE ), 65536 );
 
             Runtime.getRuntime().addShutdownHook( new Thread()
             {
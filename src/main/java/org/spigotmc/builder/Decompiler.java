@@ -0,0 +1,272 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Predicate;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import lombok.RequiredArgsConstructor;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Decompiles a directory of classes with fernflower, split across several
+ * forked instances. Classes are grouped with their inner classes and the
+ * groups are spread over the shards by size. Every shard sees the classes of
+ * all other shards as libraries, so each class is decompiled with the same
+ * context whatever the number of shards and the merged output does not
+ * depend on how many workers ran.
+ */
+@RequiredArgsConstructor
+public class Decompiler
+{
+
+    private final File fernflower;
+    private final String[] options;
+    private final int workers;
+
+    /**
+     * Decompiles every class below classesDir into outputDir. The classes are
+     * left in place once done.
+     */
+    public void decompile(File classesDir, File outputDir) throws Exception
+    {
+        decompile( classesDir, outputDir, null );
+    }
+
+    /**
+     * Decompiles the classes below classesDir whose outer class path (such as
+     * net/minecraft/server/World) is accepted by the filter into outputDir.
+     * The remaining classes are only handed to fernflower as libraries. The
+     * classes are left in place once done.
+     */
+    public void decompile(File classesDir, File outputDir, Predicate<String> filter) throws Exception
+    {
+        Map<String, List<File>> groups = group( classesDir );
+        List<File> libraries = new ArrayList<File>();
+        File libraryDir = new File( outputDir, ".library" );
+        final List<File> shardClasses = new ArrayList<File>();
+        List<File> shardOutputs = new ArrayList<File>();
+        try
+        {
+            if ( filter != null )
+            {
+                for ( Iterator<Map.Entry<String, List<File>>> it = groups.entrySet().iterator(); it.hasNext(); )
+                {
+                    Map.Entry<String, List<File>> group = it.next();
+                    if ( !filter.apply( group.getKey() ) )
+                    {
+                        for ( File clazz : group.getValue() )
+                        {
+                            FileUtils.moveFile( clazz, new File( libraryDir, relativize( classesDir, clazz ) ) );
+                        }
+                        it.remove();
+                    }
+                }
+                if ( libraryDir.isDirectory() )
+                {
+                    libraries.add( libraryDir );
+                }
+                System.out.println( "Decompiling " + groups.size() + " selected classes" );
+            }
+            if ( groups.isEmpty() )
+            {
+                return;
+            }
+
+            List<List<File>> shards = shard( groups );
+            if ( shards.size() <= 1 )
+            {
+                fernflower( libraries, classesDir, outputDir );
+                return;
+            }
+
+            System.out.println( "Decompiling " + classesDir + " in " + shards.size() + " shards" );
+            for ( int i = 0; i < shards.size(); i++ )
+            {
+                File shardDir = new File( outputDir, ".shard-" + i );
+                File classes = new File( shardDir, "classes" );
+                for ( File clazz : shards.get( i ) )
+                {
+                    FileUtils.moveFile( clazz, new File( classes, relativize( classesDir, clazz ) ) );
+                }
+                shardClasses.add( classes );
+                shardOutputs.add( new File( shardDir, "out" ) );
+            }
+
+            runShards( shardClasses, shardOutputs, libraries );
+        } finally
+        {
+            // Put the classes back where they came from, whatever happened
+            for ( File classes : shardClasses )
+            {
+                merge( classes, classesDir );
+            }
+            merge( libraryDir, classesDir );
+            FileUtils.deleteQuietly( libraryDir );
+        }
+
+        for ( File out : shardOutputs )
+        {
+            merge( out, outputDir );
+        }
+        for ( File classes : shardClasses )
+        {
+            FileUtils.deleteDirectory( classes.getParentFile() );
+        }
+    }
+
+    private void runShards(final List<File> shardClasses, List<File> shardOutputs, List<File> libraries) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool( shardClasses.size(), new ThreadFactoryBuilder().setNameFormat( "Decompile Worker #%d" ).build() );
+        try
+        {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for ( int i = 0; i < shardClasses.size(); i++ )
+            {
+                final File classes = shardClasses.get( i );
+                final File out = shardOutputs.get( i );
+                final List<File> shardLibraries = new ArrayList<File>( shardClasses );
+                shardLibraries.remove( classes );
+                shardLibraries.addAll( libraries );
+                out.mkdirs();
+
+                results.add( executor.submit( new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        fernflower( shardLibraries, classes, out );
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future<?> result : results )
+            {
+                result.get();
+            }
+        } finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Groups the classes by their outer class, so inner classes always end up
+     * in the same shard as the class they belong to.
+     */
+    private static Map<String, List<File>> group(File classesDir)
+    {
+        Map<String, List<File>> groups = new TreeMap<String, List<File>>();
+        for ( File clazz : FileUtils.listFiles( classesDir, new String[]
+        {
+            "class"
+        }, true ) )
+        {
+            String path = relativize( classesDir, clazz ).replace( File.separatorChar, '/' );
+            int inner = path.indexOf( '$' );
+            String outer = ( inner == -1 ) ? path.substring( 0, path.length() - ".class".length() ) : path.substring( 0, inner );
+
+            List<File> group = groups.get( outer );
+            if ( group == null )
+            {
+                group = new ArrayList<File>();
+                groups.put( outer, group );
+            }
+            group.add( clazz );
+        }
+        return groups;
+    }
+
+    /**
+     * Deals the groups out to the shards, largest first, always to the
+     * currently smallest shard.
+     */
+    private List<List<File>> shard(Map<String, List<File>> groups)
+    {
+        final Map<List<File>, Long> sizes = new IdentityHashMap<List<File>, Long>();
+        List<List<File>> ordered = new ArrayList<List<File>>( groups.values() );
+        for ( List<File> group : ordered )
+        {
+            long size = 0;
+            for ( File clazz : group )
+            {
+                size += clazz.length();
+            }
+            sizes.put( group, size );
+        }
+        // Stable sort on the name ordered groups, so equal sizes keep a fixed order
+        Collections.sort( ordered, new Comparator<List<File>>()
+        {
+            @Override
+            public int compare(List<File> o1, List<File> o2)
+            {
+                return sizes.get( o2 ).compareTo( sizes.get( o1 ) );
+            }
+        } );
+
+        int count = Math.max( 1, Math.min( workers, ordered.size() ) );
+        List<List<File>> shards = new ArrayList<List<File>>();
+        long[] shardSizes = new long[ count ];
+        for ( int i = 0; i < count; i++ )
+        {
+            shards.add( new ArrayList<File>() );
+        }
+        for ( List<File> group : ordered )
+        {
+            int smallest = 0;
+            for ( int i = 1; i < count; i++ )
+            {
+                if ( shardSizes[i] < shardSizes[smallest] )
+                {
+                    smallest = i;
+                }
+            }
+            shards.get( smallest ).addAll( group );
+            shardSizes[smallest] += sizes.get( group );
+        }
+        return shards;
+    }
+
+    private void fernflower(List<File> libraries, File classes, File out) throws Exception
+    {
+        List<String> command = new ArrayList<String>( Arrays.asList( "java", Builder.resources.heapOption(), "-jar", fernflower.getPath() ) );
+        command.addAll( Arrays.asList( options ) );
+        for ( File library : libraries )
+        {
+            command.add( "-e=" + library.getPath() );
+        }
+        command.add( classes.getPath() );
+        command.add( out.getPath() );
+        Builder.runProcess( Builder.CWD, command.toArray( new String[ command.size() ] ) );
+    }
+
+    private static void merge(File from, File to) throws Exception
+    {
+        if ( !from.isDirectory() )
+        {
+            return;
+        }
+        for ( File file : FileUtils.listFiles( from, null, true ) )
+        {
+            File target = new File( to, relativize( from, file ) );
+            target.delete();
+            FileUtils.moveFile( file, target );
+        }
+    }
+
+    private static String relativize(File root, File file)
+    {
+        return file.getAbsolutePath().substring( root.getAbsolutePath().length() + 1 );
+    }
+}
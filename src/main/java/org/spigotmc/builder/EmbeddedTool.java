@@ -0,0 +1,265 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Joiner;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.Permission;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Runs the main class of one of the BuildData tool jars inside this JVM
+ * instead of forking a new one for every invocation. Every invocation gets a
+ * fresh class loader, so no static state leaks from one run into the next.
+ * Tools calling System.exit are trapped and their status is treated like a
+ * process exit code. The trap is a security manager which is only installed
+ * while at least one tool runs, and which stops System.exit on every thread
+ * meanwhile, including the threads a tool starts. Any security manager
+ * installed before is asked for everything else and put back afterwards.
+ * Where the trap can not be installed (Java 18 and later, or a security
+ * manager refusing it) the tool is forked instead, like it is when the jar
+ * can not be loaded.
+ */
+public class EmbeddedTool
+{
+
+    /**
+     * Exit status of the tool a thread works for, inherited by the threads the
+     * tool starts.
+     */
+    private static final InheritableThreadLocal<AtomicInteger> exitStatus = new InheritableThreadLocal<AtomicInteger>();
+    /**
+     * Number of tools currently running with the trap installed.
+     */
+    private static int trapUsers;
+    private static SecurityManager previous;
+    private static volatile Thread restoring;
+    private final File jar;
+    private final URLClassLoader loader;
+    private final Method main;
+
+    private EmbeddedTool(File jar) throws Exception
+    {
+        this.jar = jar;
+
+        JarFile jarFile = new JarFile( jar );
+        String mainClass;
+        try
+        {
+            Manifest manifest = jarFile.getManifest();
+            mainClass = ( manifest == null ) ? null : manifest.getMainAttributes().getValue( "Main-Class" );
+        } finally
+        {
+            jarFile.close();
+        }
+        if ( mainClass == null )
+        {
+            throw new IOException( jar + " does not declare a Main-Class" );
+        }
+
+        // Parent is the extension loader so the tool never sees our own copies of its dependencies
+        loader = new URLClassLoader( new URL[]
+        {
+            jar.toURI().toURL()
+        }, ClassLoader.getSystemClassLoader().getParent() );
+        // Before Java 7 the loader can not be closed and would keep the jar open
+        if ( !( (Object) loader instanceof Closeable ) )
+        {
+            throw new IOException( "class loaders can not be closed on this JVM" );
+        }
+        try
+        {
+            main = loader.loadClass( mainClass ).getMethod( "main", String[].class );
+        } catch ( Exception ex )
+        {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Runs the tool with the given arguments, falling back to a forked JVM if
+     * the jar can not be loaded in process.
+     */
+    public static void run(File jar, String... args) throws Exception
+    {
+        BuildReport.Span span = BuildReport.start( "tool", jar.getName() + " " + Joiner.on( ' ' ).join( args ) );
+        try
+        {
+            load( jar, args );
+            span.succeeded();
+        } finally
+        {
+            span.end();
+        }
+    }
+
+    private static void load(File jar, String... args) throws Exception
+    {
+        EmbeddedTool tool = null;
+        try
+        {
+            tool = new EmbeddedTool( jar );
+            installExitTrap();
+        } catch ( Exception ex )
+        {
+            if ( tool != null )
+            {
+                tool.close();
+            }
+            System.err.println( "Could not load " + jar + " in process (" + ex + "), forking instead" );
+            fork( jar, args );
+            return;
+        }
+        try
+        {
+            tool.invoke( args );
+        } finally
+        {
+            removeExitTrap();
+            tool.close();
+        }
+    }
+
+    private static void fork(File jar, String... args) throws Exception
+    {
+        String[] command = new String[ args.length + 4 ];
+        command[0] = "java";
+        command[1] = Builder.resources.heapOption();
+        command[2] = "-jar";
+        command[3] = jar.getPath();
+        System.arraycopy( args, 0, command, 4, args.length );
+        Builder.runProcess( Builder.CWD, command );
+    }
+
+    private void close() throws IOException
+    {
+        ( (Closeable) (Object) loader ).close();
+    }
+
+    private void invoke(String... args) throws Exception
+    {
+        Thread thread = Thread.currentThread();
+        ClassLoader contextLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader( main.getDeclaringClass().getClassLoader() );
+        AtomicInteger status = new AtomicInteger();
+        exitStatus.set( status );
+        try
+        {
+            main.invoke( null, (Object) args );
+        } catch ( InvocationTargetException ex )
+        {
+            if ( !( ex.getCause() instanceof ExitException ) )
+            {
+                throw new RuntimeException( "Error running " + jar.getName() + ": " + Arrays.toString( args ), ex.getCause() );
+            }
+        } finally
+        {
+            exitStatus.remove();
+            thread.setContextClassLoader( contextLoader );
+        }
+        // Set by whichever of the tool's threads called System.exit
+        if ( status.get() != 0 )
+        {
+            throw new RuntimeException( "Error running " + jar.getName() + ", exit status " + status.get() + ": " + Arrays.toString( args ) );
+        }
+    }
+
+    /**
+     * Installs the trap for one more running tool, throwing if a System.exit
+     * could not be trapped.
+     */
+    private static synchronized void installExitTrap()
+    {
+        if ( trapUsers == 0 )
+        {
+            SecurityManager manager = System.getSecurityManager();
+            // Throws UnsupportedOperationException on Java 18 and later, or SecurityException if the manager in charge refuses
+            System.setSecurityManager( new ExitTrap( manager ) );
+            previous = manager;
+        }
+        trapUsers++;
+    }
+
+    /**
+     * Puts the previous security manager back once the last running tool
+     * returned.
+     */
+    private static synchronized void removeExitTrap()
+    {
+        if ( --trapUsers == 0 && System.getSecurityManager() instanceof ExitTrap )
+        {
+            restoring = Thread.currentThread();
+            try
+            {
+                System.setSecurityManager( previous );
+            } finally
+            {
+                restoring = null;
+                previous = null;
+            }
+        }
+    }
+
+    private static class ExitException extends SecurityException
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        public ExitException(int status)
+        {
+            super( "Tool called System.exit(" + status + ")" );
+        }
+    }
+
+    /**
+     * Stops System.exit on every thread, leaving everything else to the
+     * security manager it replaced, if any.
+     */
+    @RequiredArgsConstructor
+    private static class ExitTrap extends SecurityManager
+    {
+
+        private final SecurityManager delegate;
+
+        @Override
+        public void checkPermission(Permission perm)
+        {
+            if ( delegate != null && restoring != Thread.currentThread() )
+            {
+                delegate.checkPermission( perm );
+            }
+        }
+
+        @Override
+        public void checkPermission(Permission perm, Object context)
+        {
+            if ( delegate != null && restoring != Thread.currentThread() )
+            {
+                delegate.checkPermission( perm, context );
+            }
+        }
+
+        @Override
+        public void checkExit(int status)
+        {
+            AtomicInteger tool = exitStatus.get();
+            if ( tool != null )
+            {
+                tool.compareAndSet( 0, status );
+            } else
+            {
+                System.err.println( "Stopped System.exit(" + status + ") on " + Thread.currentThread().getName() + " while a tool was running" );
+            }
+            throw new ExitException( status );
+        }
+    }
+}
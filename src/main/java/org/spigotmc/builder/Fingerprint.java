@@ -0,0 +1,139 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import lombok.RequiredArgsConstructor;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Hash of everything a stage reads, stored next to the build once the stage
+ * succeeded. A stage whose fingerprint matches the stored one has nothing new
+ * to work on and may be skipped, provided its output is still around.
+ */
+@RequiredArgsConstructor
+public class Fingerprint
+{
+
+    private final File file;
+    private final Hasher hasher = Hashing.md5().newHasher();
+    private String value;
+
+    public Fingerprint add(String part)
+    {
+        hasher.putString( String.valueOf( part ), Charsets.UTF_8 ).putByte( (byte) 0 );
+        return this;
+    }
+
+    /**
+     * Adds the commit every branch of the repositories and their HEAD point
+     * at.
+     */
+    public Fingerprint heads(File... repositories) throws IOException
+    {
+        for ( File repository : repositories )
+        {
+            Git git = Git.open( repository );
+            try
+            {
+                ObjectId head = git.getRepository().resolve( Constants.HEAD );
+                add( repository.getPath() ).add( ( head == null ) ? null : head.name() );
+                for ( Map.Entry<String, Ref> ref : new TreeMap<String, Ref>( git.getRepository().getRefDatabase().getRefs( Constants.R_HEADS ) ).entrySet() )
+                {
+                    add( ref.getKey() ).add( ref.getValue().getObjectId().name() );
+                }
+            } finally
+            {
+                git.close();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Adds the content of all uncommitted changes to tracked files of the
+     * repositories. Untracked files are left out, build output and generated
+     * sources live there.
+     */
+    public Fingerprint status(File... repositories) throws IOException, GitAPIException
+    {
+        for ( File repository : repositories )
+        {
+            Git git = Git.open( repository );
+            try
+            {
+                Status status = git.status().call();
+                TreeSet<String> changed = new TreeSet<String>();
+                changed.addAll( status.getAdded() );
+                changed.addAll( status.getChanged() );
+                changed.addAll( status.getModified() );
+                changed.addAll( status.getRemoved() );
+                changed.addAll( status.getMissing() );
+                changed.addAll( status.getConflicting() );
+                for ( String path : changed )
+                {
+                    files( new File( repository, path ) );
+                }
+            } finally
+            {
+                git.close();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Adds the name and content of the files, missing ones included.
+     */
+    public Fingerprint files(File... files) throws IOException
+    {
+        for ( File file : files )
+        {
+            add( file.getPath() ).add( ( file.isFile() ) ? Builder.hashes.md5( file ) : "missing" );
+        }
+        return this;
+    }
+
+    private String value()
+    {
+        if ( value == null )
+        {
+            value = hasher.hash().toString();
+        }
+        return value;
+    }
+
+    /**
+     * Whether the inputs are the same as when this fingerprint was last saved.
+     */
+    public boolean matches() throws IOException
+    {
+        return file.isFile() && Files.toString( file, Charsets.UTF_8 ).equals( value() );
+    }
+
+    public void save() throws IOException
+    {
+        Files.createParentDirs( file );
+        Files.write( value(), file, Charsets.UTF_8 );
+    }
+
+    /**
+     * Forgets the saved fingerprint, so the stage runs again even if it is
+     * interrupted before it could save a new one.
+     */
+    public void invalidate()
+    {
+        file.delete();
+    }
+}
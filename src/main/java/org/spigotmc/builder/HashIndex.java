@@ -0,0 +1,206 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Remembers the MD5 and SHA-256 of files by path, size and modification time,
+ * so files which did not change since they were last hashed are not read
+ * again. Both digests are computed in one pass over the file, several files
+ * are hashed in parallel. The index is kept in a JSON file and written back
+ * by {@link #save}.
+ * <p>
+ * Some file systems and JVMs only keep the modification time to the second,
+ * so a file could change again within the second it was hashed without its
+ * size or time changing. Like git, entries of files which were modified
+ * shortly before they were hashed are not trusted and hashed again.
+ */
+@RequiredArgsConstructor
+public class HashIndex
+{
+
+    private static final long RACY_MILLIS = 2000;
+    private final File file;
+    private Map<String, Entry> entries;
+    private volatile boolean dirty;
+
+    @Data
+    @AllArgsConstructor
+    public static class Entry
+    {
+
+        private long size;
+        private long modified;
+        private long hashed;
+        private String md5;
+        private String sha256;
+    }
+
+    public String md5(File file) throws IOException
+    {
+        return digest( file ).getMd5();
+    }
+
+    public String sha256(File file) throws IOException
+    {
+        return digest( file ).getSha256();
+    }
+
+    public Entry digest(File file) throws IOException
+    {
+        String key = file.getAbsolutePath();
+        Entry entry = entries().get( key );
+        if ( entry != null && entry.getSize() == file.length() && entry.getModified() == file.lastModified()
+                && entry.getHashed() - entry.getModified() > RACY_MILLIS )
+        {
+            return entry;
+        }
+
+        long size = file.length();
+        long modified = file.lastModified();
+        long hashed = System.currentTimeMillis();
+        Hasher md5 = Hashing.md5().newHasher();
+        Hasher sha256 = Hashing.sha256().newHasher();
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] buffer = new byte[ 65536 ];
+            int read;
+            while ( ( read = in.read( buffer ) ) != -1 )
+            {
+                md5.putBytes( buffer, 0, read );
+                sha256.putBytes( buffer, 0, read );
+            }
+        } finally
+        {
+            in.close();
+        }
+
+        entry = new Entry( size, modified, hashed, md5.hash().toString(), sha256.hash().toString() );
+        entries().put( key, entry );
+        dirty = true;
+        return entry;
+    }
+
+    /**
+     * Digests of several files at once, hashing those not in the index in
+     * parallel.
+     */
+    public Map<File, Entry> digestAll(File... files) throws IOException
+    {
+        Map<File, Entry> digests = new LinkedHashMap<File, Entry>();
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( files.length, Builder.resources.getCores() ) ),
+                new ThreadFactoryBuilder().setNameFormat( "Hash Worker #%d" ).build() );
+        try
+        {
+            List<Future<Entry>> futures = new ArrayList<Future<Entry>>();
+            for ( final File file : files )
+            {
+                futures.add( executor.submit( new Callable<Entry>()
+                {
+                    @Override
+                    public Entry call() throws IOException
+                    {
+                        return digest( file );
+                    }
+                } ) );
+            }
+            for ( int i = 0; i < files.length; i++ )
+            {
+                digests.put( files[i], futures.get( i ).get() );
+            }
+        } catch ( InterruptedException ex )
+        {
+            throw new IOException( "Interrupted while hashing" );
+        } catch ( ExecutionException ex )
+        {
+            if ( ex.getCause() instanceof IOException )
+            {
+                throw (IOException) ex.getCause();
+            }
+            throw new RuntimeException( ex.getCause() );
+        } finally
+        {
+            executor.shutdownNow();
+        }
+        return digests;
+    }
+
+    private synchronized Map<String, Entry> entries()
+    {
+        if ( entries == null )
+        {
+            entries = new ConcurrentHashMap<String, Entry>();
+            if ( file.isFile() )
+            {
+                try
+                {
+                    Map<String, Entry> saved = new Gson().fromJson( Files.toString( file, Charsets.UTF_8 ), new TypeToken<Map<String, Entry>>()
+                    {
+                    }.getType() );
+                    if ( saved != null )
+                    {
+                        entries.putAll( saved );
+                    }
+                } catch ( IOException ex )
+                {
+                    System.err.println( "Could not read hash index " + file + ", hashing from scratch" );
+                } catch ( JsonParseException ex )
+                {
+                    System.err.println( "Could not read hash index " + file + ", hashing from scratch" );
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Writes the index back if anything was hashed, leaving out files which
+     * no longer exist.
+     */
+    public synchronized void save() throws IOException
+    {
+        if ( !dirty )
+        {
+            return;
+        }
+        dirty = false;
+
+        Map<String, Entry> saved = new TreeMap<String, Entry>();
+        for ( Map.Entry<String, Entry> entry : entries().entrySet() )
+        {
+            if ( new File( entry.getKey() ).isFile() )
+            {
+                saved.put( entry.getKey(), entry.getValue() );
+            }
+        }
+        Files.createParentDirs( file );
+        File tmp = new File( file.getParentFile(), file.getName() + ".tmp" );
+        Files.write( new Gson().toJson( saved ), tmp, Charsets.UTF_8 );
+        Builder.replaceFile( tmp, file );
+    }
+}
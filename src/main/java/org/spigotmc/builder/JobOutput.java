@@ -0,0 +1,96 @@
+package org.spigotmc.builder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Output stream which, besides writing to the console, copies everything a
+ * thread prints to the log of the job the thread works for. Threads started
+ * by a job belong to the same job, pooled threads which outlive a job have to
+ * be bound to it through {@link #bind}.
+ */
+@RequiredArgsConstructor
+public class JobOutput extends OutputStream
+{
+
+    private static final InheritableThreadLocal<OutputStream> log = new InheritableThreadLocal<OutputStream>();
+    private final OutputStream out;
+
+    /**
+     * Sends everything the current thread, and every thread it starts, prints
+     * to the given log as well, or stops doing so if it is null.
+     */
+    public static void setLog(OutputStream out)
+    {
+        log.set( out );
+    }
+
+    /**
+     * Wraps the task so it runs for the job of the current thread, whatever
+     * thread ends up running it.
+     */
+    public static <T> Callable<T> bind(final Callable<T> task)
+    {
+        final OutputStream current = log.get();
+        return new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                OutputStream previous = log.get();
+                log.set( current );
+                try
+                {
+                    return task.call();
+                } finally
+                {
+                    log.set( previous );
+                }
+            }
+        };
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        out.write( b );
+        OutputStream current = log.get();
+        if ( current != null )
+        {
+            synchronized ( current )
+            {
+                current.write( b );
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        out.write( b, off, len );
+        OutputStream current = log.get();
+        if ( current != null )
+        {
+            synchronized ( current )
+            {
+                current.write( b, off, len );
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        out.flush();
+        OutputStream current = log.get();
+        if ( current != null )
+        {
+            synchronized ( current )
+            {
+                current.flush();
+            }
+        }
+    }
+}
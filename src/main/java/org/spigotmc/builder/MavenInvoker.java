@@ -0,0 +1,136 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Joiner;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Runs Maven goals for the build. In embedded mode the Maven distribution is
+ * loaded once into this JVM and every invocation goes through the same warm
+ * MavenCli, which saves a JVM start, the Maven bootstrap and the JIT warm up
+ * for each module. Otherwise, or if Maven can not be loaded, every invocation
+ * forks the mvn script like before.
+ */
+@RequiredArgsConstructor
+public class MavenInvoker
+{
+
+    @Getter
+    private final File mavenHome;
+    private final boolean embedded;
+    private final int threads;
+    private Object cli;
+    private Method doMain;
+    private boolean forking;
+
+    /**
+     * Runs the goals in the given project directory. Callers must not run
+     * several invocations at once, Maven is not safe for that.
+     */
+    public void execute(File workDir, String... goals) throws Exception
+    {
+        List<String> args = new ArrayList<String>( Arrays.asList( goals ) );
+        if ( threads > 1 )
+        {
+            args.add( 0, "-T" );
+            args.add( 1, String.valueOf( threads ) );
+        }
+
+        BuildReport.Span span = BuildReport.start( "maven", workDir.getPath() + " " + Joiner.on( ' ' ).join( goals ) );
+        try
+        {
+            if ( embedded && !forking && load() )
+            {
+                invoke( workDir, args );
+            } else
+            {
+                args.add( 0, "sh" );
+                args.add( 1, new File( mavenHome, "bin/mvn" ).getAbsolutePath() );
+                Builder.runProcess( workDir, args.toArray( new String[ args.size() ] ) );
+            }
+            span.succeeded();
+        } finally
+        {
+            span.end();
+        }
+    }
+
+    private boolean load()
+    {
+        if ( cli != null )
+        {
+            return true;
+        }
+        try
+        {
+            List<URL> urls = new ArrayList<URL>();
+            for ( String dir : new String[]
+            {
+                "boot", "lib", "lib/ext"
+            } )
+            {
+                File[] jars = new File( mavenHome, dir ).listFiles( new FilenameFilter()
+                {
+                    @Override
+                    public boolean accept(File dir, String name)
+                    {
+                        return name.endsWith( ".jar" );
+                    }
+                } );
+                if ( jars != null )
+                {
+                    Arrays.sort( jars );
+                    for ( File jar : jars )
+                    {
+                        urls.add( jar.toURI().toURL() );
+                    }
+                }
+            }
+
+            // Parent is the extension loader so Maven never sees our own copies of its dependencies
+            ClassLoader loader = new URLClassLoader( urls.toArray( new URL[ urls.size() ] ), ClassLoader.getSystemClassLoader().getParent() );
+            Class<?> cliClass = loader.loadClass( "org.apache.maven.cli.MavenCli" );
+            doMain = cliClass.getMethod( "doMain", String[].class, String.class, PrintStream.class, PrintStream.class );
+            cli = cliClass.newInstance();
+
+            System.setProperty( "maven.home", mavenHome.getAbsolutePath() );
+            System.out.println( "Loaded Maven from " + mavenHome + " into the build" );
+            return true;
+        } catch ( Exception ex )
+        {
+            System.err.println( "Could not load Maven from " + mavenHome + " in process (" + ex + "), forking instead" );
+            forking = true;
+            return false;
+        }
+    }
+
+    private void invoke(File workDir, List<String> args) throws Exception
+    {
+        Thread thread = Thread.currentThread();
+        ClassLoader contextLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader( cli.getClass().getClassLoader() );
+        String directory = workDir.getAbsoluteFile().getCanonicalPath();
+        // Required since Maven 3.3, the mvn script would normally set it
+        System.setProperty( "maven.multiModuleProjectDirectory", directory );
+        try
+        {
+            int status = (Integer) doMain.invoke( cli, args.toArray( new String[ args.size() ] ), directory, System.out, System.err );
+            if ( status != 0 )
+            {
+                throw new RuntimeException( "Error running Maven, return status !=0: " + args + " in " + workDir );
+            }
+        } finally
+        {
+            thread.setContextClassLoader( contextLoader );
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.eclipse.jgit.api.CreateBranchCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.RefSpec;
+
+/**
+ * Central store of bare mirrors, one per upstream, shared by every checkout
+ * on the machine. Checkouts borrow the objects of the mirror through git
+ * alternates instead of keeping their own copy, and fetch from the mirror
+ * rather than from the network. Each mirror is fetched from its upstream at
+ * most once per run. Repositories on the local disk are fetched from
+ * directly and copied, their branches are rewritten by the build and a gc
+ * in them would prune objects their clones still borrowed.
+ */
+@RequiredArgsConstructor
+public class MirrorStore
+{
+
+    private static final RefSpec[] MIRROR_REFS =
+    {
+        new RefSpec( "+refs/heads/*:refs/heads/*" ), new RefSpec( "+refs/tags/*:refs/tags/*" )
+    };
+    private static final RefSpec[] CHECKOUT_REFS =
+    {
+        new RefSpec( "+refs/heads/*:refs/remotes/origin/*" ), new RefSpec( "+refs/tags/*:refs/tags/*" )
+    };
+    @Getter
+    private final File root;
+    private final Set<String> updated = Collections.synchronizedSet( new HashSet<String>() );
+    private final Map<String, Object> locks = new HashMap<String, Object>();
+
+    /**
+     * Clones the url into target, borrowing the objects from the mirror of
+     * the url. Repositories on the local disk are copied.
+     */
+    public void clone(String url, File target, ProgressMonitor monitor) throws GitAPIException, IOException
+    {
+        File source = source( url, monitor );
+
+        Git git = Git.init().setDirectory( target ).call();
+        try
+        {
+            if ( !isLocal( url ) )
+            {
+                share( git, source );
+            }
+            StoredConfig config = git.getRepository().getConfig();
+            config.setString( "remote", "origin", "url", url );
+            config.setString( "remote", "origin", "fetch", CHECKOUT_REFS[0].toString() );
+            config.save();
+
+            git.fetch().setRemote( source.getAbsolutePath() ).setRefSpecs( CHECKOUT_REFS ).call();
+
+            String branch = ( git.getRepository().getRef( "refs/remotes/origin/master" ) != null ) ? "master"
+                    : git.getRepository().getRefDatabase().getRefs( "refs/remotes/origin/" ).keySet().iterator().next();
+            git.checkout().setCreateBranch( true ).setName( branch ).setStartPoint( "origin/" + branch )
+                    .setUpstreamMode( CreateBranchCommand.SetupUpstreamMode.TRACK ).call();
+        } finally
+        {
+            git.close();
+        }
+    }
+
+    /**
+     * Fetches the origin of the repository through its mirror.
+     */
+    public void fetch(Git git, ProgressMonitor monitor) throws Exception
+    {
+        String url = git.getRepository().getConfig().getString( "remote", "origin", "url" );
+        File source = source( url, monitor );
+        if ( isLocal( url ) )
+        {
+            unshare( git, source );
+        } else
+        {
+            share( git, source );
+        }
+        git.fetch().setRemote( source.getAbsolutePath() ).setRefSpecs( CHECKOUT_REFS ).setProgressMonitor( monitor ).call();
+    }
+
+    /**
+     * Makes every mirror fetch from its upstream again on its next use.
+     */
+    public void expire()
+    {
+        updated.clear();
+    }
+
+    /**
+     * Returns the repository to take objects from for the url, bringing the
+     * mirror up to date on the first use in this run.
+     */
+    private File source(String url, ProgressMonitor monitor) throws GitAPIException, IOException
+    {
+        if ( isLocal( url ) )
+        {
+            File local = new File( url.substring( "file://".length() ) );
+            File gitDir = new File( local, Constants.DOT_GIT );
+            return ( gitDir.isDirectory() ) ? gitDir : local;
+        }
+
+        String name = url.substring( url.lastIndexOf( '/' ) + 1 ).replace( ".git", "" );
+        File mirror = new File( root, name + "-" + Hashing.md5().hashString( url, Charsets.UTF_8 ).toString().substring( 0, 8 ) + ".git" );
+        synchronized ( lock( url ) )
+        {
+            if ( updated.contains( url ) )
+            {
+                return mirror;
+            }
+            Git git;
+            if ( new File( mirror, "objects" ).isDirectory() )
+            {
+                git = Git.open( mirror );
+                System.out.println( "Updating mirror of " + url + " in " + mirror );
+            } else
+            {
+                git = Git.init().setBare( true ).setDirectory( mirror ).call();
+                System.out.println( "Creating mirror of " + url + " in " + mirror );
+            }
+            try
+            {
+                git.fetch().setRemote( url ).setRefSpecs( MIRROR_REFS ).setRemoveDeletedRefs( true ).setProgressMonitor( monitor ).call();
+            } finally
+            {
+                git.close();
+            }
+            updated.add( url );
+            return mirror;
+        }
+    }
+
+    private static boolean isLocal(String url)
+    {
+        return url.startsWith( "file://" );
+    }
+
+    private Object lock(String url)
+    {
+        synchronized ( locks )
+        {
+            Object lock = locks.get( url );
+            if ( lock == null )
+            {
+                lock = new Object();
+                locks.put( url, lock );
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Adds the objects of the source repository to the alternates of the
+     * repository, unless they are already there.
+     */
+    private static void share(Git git, File source) throws IOException
+    {
+        File alternates = new File( git.getRepository().getDirectory(), "objects/info/alternates" );
+        String objects = new File( source, "objects" ).getAbsolutePath();
+        String existing = ( alternates.isFile() ) ? Files.toString( alternates, Charsets.UTF_8 ) : "";
+        if ( !existing.contains( objects ) )
+        {
+            Files.createParentDirs( alternates );
+            Files.append( objects + "\n", alternates, Charsets.UTF_8 );
+            // JGit caches the object database, make it see the new alternate
+            git.getRepository().getObjectDatabase().close();
+        }
+    }
+
+    /**
+     * Copies the objects borrowed from the source repository into the
+     * repository and stops borrowing them. Clones of local repositories
+     * used to borrow from them directly.
+     */
+    private static void unshare(Git git, File source) throws Exception
+    {
+        File alternates = new File( git.getRepository().getDirectory(), "objects/info/alternates" );
+        if ( !alternates.isFile() )
+        {
+            return;
+        }
+        List<String> lines = Files.readLines( alternates, Charsets.UTF_8 );
+        if ( !lines.remove( new File( source, "objects" ).getAbsolutePath() ) )
+        {
+            return;
+        }
+        System.out.println( "Copying the objects " + git.getRepository().getDirectory() + " borrows from " + source );
+        // repack -a also packs the objects it only finds through the alternates
+        Builder.runProcess( git.getRepository().getDirectory(), "git", "repack", "-a", "-d", "-q" );
+        if ( lines.isEmpty() )
+        {
+            alternates.delete();
+        } else
+        {
+            Files.write( Joiner.on( '\n' ).join( lines ) + "\n", alternates, Charsets.UTF_8 );
+        }
+        git.getRepository().getObjectDatabase().close();
+    }
+}
@@ -0,0 +1,258 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Applies the CraftBukkit nms-patches to the decompiled sources. Patches are
+ * independent of each other, so they are handed out one at a time from a
+ * shared queue to a pool of workers, largest first, which keeps every worker
+ * busy until the queue runs dry.
+ * <p>
+ * A {@link PatchManifest} remembers what every output was built from. Patches
+ * whose patch file, clean source and output are unchanged are skipped and
+ * outputs no longer backed by a patch are removed. Outputs which were edited
+ * by hand are moved to the backup directory rather than being overwritten.
+ * After a run the outputs written and removed are known, so callers only have
+ * to look at those.
+ */
+@RequiredArgsConstructor
+public class PatchEngine
+{
+
+    private final File patchDir;
+    private final File cleanDir;
+    private final File outputDir;
+    private final File manifestFile;
+    private final File backupDir;
+    private final int threads;
+    private PatchManifest previous;
+    private PatchManifest current;
+    /**
+     * Outputs written by this run, relative to the output directory.
+     */
+    @Getter
+    private final Set<String> written = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+    /**
+     * Number of outputs no patch produced any more, which were removed.
+     */
+    @Getter
+    private int removed;
+
+    /**
+     * Brings the output directory up to date with the patches.
+     *
+     * @return the number of patches which had to be applied
+     */
+    public int run() throws Exception
+    {
+        File[] patches = patchDir.listFiles();
+        if ( patches == null )
+        {
+            throw new IOException( "Patch directory " + patchDir + " does not exist" );
+        }
+        Arrays.sort( patches, new Comparator<File>()
+        {
+            @Override
+            public int compare(File o1, File o2)
+            {
+                long diff = o2.length() - o1.length();
+                return ( diff < 0 ) ? -1 : ( ( diff > 0 ) ? 1 : 0 );
+            }
+        } );
+
+        previous = PatchManifest.load( manifestFile );
+        current = new PatchManifest();
+        current.setEntries( new ConcurrentSkipListMap<String, PatchManifest.Entry>() );
+
+        final Queue<File> queue = new ConcurrentLinkedQueue<File>( Arrays.asList( patches ) );
+        final Map<String, Throwable> failures = new ConcurrentSkipListMap<String, Throwable>();
+        final AtomicInteger applied = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool( threads, new ThreadFactoryBuilder().setNameFormat( "Patch Worker #%d" ).build() );
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        try
+        {
+            for ( int i = 0; i < threads; i++ )
+            {
+                workers.add( executor.submit( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        File patch;
+                        while ( ( patch = queue.poll() ) != null )
+                        {
+                            BuildReport.Span span = BuildReport.start( "patch", patch.getName() );
+                            try
+                            {
+                                if ( update( patch ) )
+                                {
+                                    applied.incrementAndGet();
+                                }
+                                span.succeeded();
+                            } catch ( Exception ex )
+                            {
+                                failures.put( patch.getName(), ex );
+                            } finally
+                            {
+                                span.end();
+                            }
+                        }
+                    }
+                } ) );
+            }
+            for ( Future<?> worker : workers )
+            {
+                worker.get();
+            }
+        } finally
+        {
+            executor.shutdownNow();
+        }
+
+        removeStale();
+        current.save( manifestFile );
+        System.out.println( "Applied " + applied + " patches, " + ( patches.length - applied.get() - failures.size() ) + " were up to date" );
+
+        if ( !failures.isEmpty() )
+        {
+            StringBuilder report = new StringBuilder( failures.size() + " of " + patches.length + " patches failed to apply:" );
+            for ( Map.Entry<String, Throwable> failure : failures.entrySet() )
+            {
+                report.append( "\n - " ).append( failure.getKey() ).append( ": " ).append( Throwables.getRootCause( failure.getValue() ) );
+            }
+            System.err.println( "**** " + report );
+            throw new Exception( report.toString(), failures.values().iterator().next() );
+        }
+        return applied.get();
+    }
+
+    /**
+     * Every output of the last run, relative to the output directory.
+     */
+    public Set<String> getOutputs()
+    {
+        return current.getEntries().keySet();
+    }
+
+    private static String hash(File file) throws IOException
+    {
+        return Builder.hashes.md5( file );
+    }
+
+    /**
+     * Applies a single patch unless the manifest shows its output is already
+     * up to date.
+     *
+     * @return whether the patch was applied
+     */
+    private boolean update(File patchFile) throws Exception
+    {
+        String targetFile = "net/minecraft/server/" + patchFile.getName().replaceAll( ".patch", ".java" );
+
+        File clean = new File( cleanDir, targetFile );
+        File t = new File( outputDir, targetFile );
+
+        String patchHash = hash( patchFile );
+        String cleanHash = hash( clean );
+        PatchManifest.Entry entry = previous.getEntries().get( targetFile );
+        String outputHash = ( t.exists() ) ? hash( t ) : null;
+        if ( entry != null && entry.getPatch().equals( patchHash ) && entry.getClean().equals( cleanHash ) && entry.getOutput().equals( outputHash ) )
+        {
+            current.getEntries().put( targetFile, entry );
+            return false;
+        }
+        if ( outputHash != null && ( entry == null || !entry.getOutput().equals( outputHash ) ) )
+        {
+            backup( targetFile );
+        }
+
+        File tmp = apply( patchFile, clean, t );
+        current.getEntries().put( targetFile, new PatchManifest.Entry( patchHash, cleanHash, hash( tmp ) ) );
+        Builder.replaceFile( tmp, t );
+        written.add( targetFile );
+        return true;
+    }
+
+    /**
+     * Deletes every output which no patch produced during this run, keeping a
+     * backup of those that were not written by us.
+     */
+    private void removeStale() throws IOException
+    {
+        File nmsDir = new File( outputDir, "net" );
+        if ( !nmsDir.isDirectory() )
+        {
+            return;
+        }
+        String prefix = outputDir.getAbsolutePath() + File.separator;
+        for ( File file : FileUtils.listFiles( nmsDir, null, true ) )
+        {
+            String targetFile = file.getAbsolutePath().substring( prefix.length() ).replace( File.separatorChar, '/' );
+            if ( current.getEntries().containsKey( targetFile ) )
+            {
+                continue;
+            }
+            PatchManifest.Entry entry = previous.getEntries().get( targetFile );
+            if ( entry != null && entry.getOutput().equals( hash( file ) ) )
+            {
+                file.delete();
+            } else
+            {
+                backup( targetFile );
+            }
+            removed++;
+        }
+    }
+
+    private void backup(String targetFile) throws IOException
+    {
+        File backup = new File( backupDir, targetFile );
+        System.out.println( "Backing up modified NMS file " + targetFile + " to " + backup );
+        FileUtils.moveFile( new File( outputDir, targetFile ), backup );
+    }
+
+    /**
+     * Applies the patch to the clean source, writing the result to a temporary
+     * file next to the target.
+     */
+    private File apply(File patchFile, File clean, File t) throws Exception
+    {
+        t.getParentFile().mkdirs();
+
+        System.out.println( "Patching with " + patchFile.getName() );
+
+        // Written next to the target and moved into place, a failed or interrupted run never leaves half a file
+        File tmp = new File( t.getParentFile(), t.getName() + ".tmp" );
+        try
+        {
+            new StreamingPatch( patchFile ).apply( clean, tmp );
+        } catch ( IOException ex )
+        {
+            tmp.delete();
+            throw ex;
+        }
+        return tmp;
+    }
+}
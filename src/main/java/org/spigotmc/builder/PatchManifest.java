@@ -0,0 +1,63 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Content hashes of the patch, clean source and patched output for every
+ * NMS file produced by the {@link PatchEngine}, used to skip patches whose
+ * inputs and output are unchanged since the last run.
+ */
+@Data
+public class PatchManifest
+{
+
+    private Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    @Data
+    @AllArgsConstructor
+    public static class Entry
+    {
+
+        private String patch;
+        private String clean;
+        private String output;
+    }
+
+    public static PatchManifest load(File file)
+    {
+        if ( file.isFile() )
+        {
+            try
+            {
+                PatchManifest manifest = new Gson().fromJson( Files.toString( file, Charsets.UTF_8 ), PatchManifest.class );
+                if ( manifest != null && manifest.getEntries() != null )
+                {
+                    return manifest;
+                }
+            } catch ( IOException ex )
+            {
+                System.err.println( "Could not read patch manifest " + file + ", patching from scratch" );
+            } catch ( JsonParseException ex )
+            {
+                System.err.println( "Could not read patch manifest " + file + ", patching from scratch" );
+            }
+        }
+        return new PatchManifest();
+    }
+
+    public void save(File file) throws IOException
+    {
+        File tmp = new File( file.getParentFile(), file.getName() + ".tmp" );
+        Files.write( new Gson().toJson( this ), tmp, Charsets.UTF_8 );
+        Builder.replaceFile( tmp, file );
+    }
+}
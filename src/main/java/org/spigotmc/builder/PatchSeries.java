@@ -0,0 +1,662 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.RequiredArgsConstructor;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.patch.FileHeader;
+import org.eclipse.jgit.patch.HunkHeader;
+import org.eclipse.jgit.patch.Patch;
+import org.eclipse.jgit.transport.RefSpec;
+
+/**
+ * Does what applyPatches.sh of Migot does, without bash and without forking
+ * git for every patch. The script is read for its applyPatch calls, each of
+ * which resets a target repository to a branch of its upstream and applies
+ * the series of patches in the &lt;upstream&gt;-Patches directory on top, one
+ * commit per patch, like git am. Series building on the result of another
+ * series run after it, the others run in parallel.
+ * <p>
+ * Every patch is applied with its repository kept open, and timed. Should a
+ * patch not apply exactly, the conflict is reported and the rest of the
+ * series is handed to git am --3way, which can resolve more. Like the script,
+ * neither ignores changes in white space.
+ */
+@RequiredArgsConstructor
+public class PatchSeries
+{
+
+    private static final Pattern CALL = Pattern.compile( "applyPatch\\s+(\\S+)\\s+(\\S+)\\s+(\\S+)" );
+    private static final Pattern ENCODED_WORD = Pattern.compile( "=\\?([^?]+)\\?([QqBb])\\?([^?]*)\\?=" );
+    private final File base;
+    private final String upstream;
+    private final String target;
+    private final String branch;
+
+    /**
+     * Applies every series the script in the base directory declares.
+     *
+     * @return false if the script does not look like one this understands,
+     * in which case nothing was done
+     */
+    public static boolean applyAll(File base) throws Exception
+    {
+        File script = new File( base, "applyPatches.sh" );
+        if ( !script.isFile() )
+        {
+            return false;
+        }
+        String text = Files.toString( script, Charsets.UTF_8 );
+        if ( !text.contains( "${what}-Patches" ) )
+        {
+            return false;
+        }
+
+        // Series whose upstream is the target of an earlier one form a chain and run in order
+        List<List<PatchSeries>> chains = new ArrayList<List<PatchSeries>>();
+        for ( String line : text.split( "\n" ) )
+        {
+            if ( line.trim().startsWith( "#" ) )
+            {
+                continue;
+            }
+            Matcher matcher = CALL.matcher( line );
+            while ( matcher.find() )
+            {
+                PatchSeries series = new PatchSeries( base, unquote( matcher.group( 1 ) ), unquote( matcher.group( 2 ) ), unquote( matcher.group( 3 ) ) );
+                if ( !new File( base, series.upstream + "-Patches" ).isDirectory() )
+                {
+                    return false;
+                }
+                List<PatchSeries> chain = null;
+                for ( List<PatchSeries> candidate : chains )
+                {
+                    if ( candidate.get( candidate.size() - 1 ).target.equals( series.upstream ) )
+                    {
+                        chain = candidate;
+                    }
+                }
+                if ( chain == null )
+                {
+                    chain = new ArrayList<PatchSeries>();
+                    chains.add( chain );
+                }
+                chain.add( series );
+            }
+        }
+        if ( chains.isEmpty() )
+        {
+            return false;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( chains.size(), new ThreadFactoryBuilder().setNameFormat( "Patch Series #%d" ).build() );
+        try
+        {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for ( final List<PatchSeries> chain : chains )
+            {
+                futures.add( executor.submit( new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        for ( PatchSeries series : chain )
+                        {
+                            series.apply();
+                        }
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future<Void> future : futures )
+            {
+                try
+                {
+                    future.get();
+                } catch ( ExecutionException ex )
+                {
+                    Throwables.propagateIfPossible( ex.getCause(), Exception.class );
+                    throw new RuntimeException( ex.getCause() );
+                }
+            }
+        } finally
+        {
+            executor.shutdownNow();
+        }
+        return true;
+    }
+
+    private static String unquote(String arg)
+    {
+        return arg.replace( "\"", "" ).replace( "'", "" );
+    }
+
+    /**
+     * Resets the target to the branch of the upstream and applies the
+     * series.
+     */
+    public void apply() throws Exception
+    {
+        File upstreamDir = new File( base, upstream );
+        File targetDir = new File( base, target );
+
+        Git upstreamGit = Git.open( upstreamDir );
+        try
+        {
+            if ( upstreamGit.getRepository().getConfig().getString( "remote", "origin", "url" ) != null )
+            {
+                upstreamGit.fetch().call();
+            }
+            upstreamGit.branchCreate().setName( "upstream" ).setStartPoint( branch ).setForce( true ).call();
+        } finally
+        {
+            upstreamGit.close();
+        }
+
+        if ( !targetDir.exists() )
+        {
+            Builder.clone( "file://" + upstreamDir.getAbsolutePath(), targetDir );
+        }
+
+        Git git = Git.open( targetDir );
+        try
+        {
+            System.out.println( "Resetting " + target + " to " + upstream + "..." );
+            StoredConfig config = git.getRepository().getConfig();
+            config.setString( "remote", "upstream", "url", upstreamDir.getAbsolutePath() );
+            config.setString( "remote", "upstream", "fetch", "+refs/heads/*:refs/remotes/upstream/*" );
+            config.save();
+            if ( !"master".equals( git.getRepository().getBranch() ) )
+            {
+                git.checkout().setName( "master" ).setCreateBranch( git.getRepository().getRef( "refs/heads/master" ) == null ).setForce( true ).call();
+            }
+            git.fetch().setRemote( "upstream" ).setRefSpecs( new RefSpec( "+refs/heads/*:refs/remotes/upstream/*" ) ).call();
+            git.reset().setRef( "upstream/upstream" ).setMode( ResetCommand.ResetType.HARD ).call();
+            // Left behind by a git am which did not finish
+            FileUtils.deleteQuietly( new File( git.getRepository().getDirectory(), "rebase-apply" ) );
+
+            File[] patches = new File( base, upstream + "-Patches" ).listFiles( new FilenameFilter()
+            {
+                @Override
+                public boolean accept(File dir, String name)
+                {
+                    return name.endsWith( ".patch" );
+                }
+            } );
+            Arrays.sort( patches );
+
+            System.out.println( "  Applying " + patches.length + " patches to " + target + "..." );
+            long start = System.currentTimeMillis();
+            for ( int i = 0; i < patches.length; i++ )
+            {
+                BuildReport.Span span = BuildReport.start( "git-am", target + "/" + patches[i].getName() );
+                long patchStart = System.currentTimeMillis();
+                try
+                {
+                    apply( git, patches[i] );
+                    span.succeeded();
+                } catch ( Exception ex )
+                {
+                    System.err.println( "**** " + patches[i].getName() + " does not apply cleanly to " + target + ": " + ex.getMessage() );
+                    System.err.println( "**** Handing the remaining " + ( patches.length - i ) + " patches to git am --3way" );
+                    git.reset().setMode( ResetCommand.ResetType.HARD ).call();
+                    gitAm( targetDir, Arrays.copyOfRange( patches, i, patches.length ) );
+                    break;
+                } finally
+                {
+                    span.end();
+                }
+                System.out.println( "  Applied " + patches[i].getName() + " in " + ( System.currentTimeMillis() - patchStart ) + "ms" );
+            }
+            System.out.println( "  Patches applied to " + target + " in " + ( System.currentTimeMillis() - start ) + "ms" );
+        } finally
+        {
+            git.close();
+        }
+    }
+
+    private void gitAm(File targetDir, File[] patches) throws Exception
+    {
+        List<String> command = new ArrayList<String>( Arrays.asList( "git", "am", "--3way" ) );
+        for ( File patch : patches )
+        {
+            command.add( patch.getAbsolutePath() );
+        }
+        try
+        {
+            Builder.runProcess( targetDir, command.toArray( new String[ command.size() ] ) );
+        } catch ( Exception ex )
+        {
+            System.err.println( "  Something did not apply cleanly to " + target + "." );
+            System.err.println( "  Please review above details and finish the apply then" );
+            System.err.println( "  save the changes with rebuildPatches.sh" );
+            throw ex;
+        }
+    }
+
+    /**
+     * Applies one patch in the format of git format-patch to the working tree
+     * and commits it with the author, date and message of the patch.
+     */
+    private static void apply(Git git, File patchFile) throws Exception
+    {
+        byte[] bytes = Files.toByteArray( patchFile );
+        Patch patch = new Patch();
+        patch.parse( new ByteArrayInputStream( bytes ) );
+        if ( !patch.getErrors().isEmpty() )
+        {
+            throw new IOException( "Malformed patch: " + patch.getErrors() );
+        }
+
+        File workTree = git.getRepository().getWorkTree();
+        // Staged together once the files are written, with the mode each file gets or null to keep it
+        Map<String, FileMode> added = new LinkedHashMap<String, FileMode>();
+        List<String> removed = new ArrayList<String>();
+        // Untracked until staged, a hard reset would leave them for git am to trip over
+        List<File> created = new ArrayList<File>();
+        try
+        {
+            for ( FileHeader file : patch.getFiles() )
+            {
+                if ( file.getPatchType() != FileHeader.PatchType.UNIFIED )
+                {
+                    throw new IOException( "Binary change to " + file.getNewPath() );
+                }
+                switch ( file.getChangeType() )
+                {
+                    case DELETE:
+                        checkDeleted( file, new File( workTree, file.getOldPath() ) );
+                        if ( !new File( workTree, file.getOldPath() ).delete() )
+                        {
+                            throw new IOException( "Could not delete " + file.getOldPath() );
+                        }
+                        removed.add( file.getOldPath() );
+                        break;
+                    case ADD:
+                        created.add( new File( workTree, file.getNewPath() ) );
+                        write( file, null, new File( workTree, file.getNewPath() ) );
+                        added.put( file.getNewPath(), file.getNewMode() );
+                        break;
+                    default:
+                        if ( !new File( workTree, file.getNewPath() ).exists() )
+                        {
+                            created.add( new File( workTree, file.getNewPath() ) );
+                        }
+                        write( file, new File( workTree, file.getOldPath() ), new File( workTree, file.getNewPath() ) );
+                        if ( file.getChangeType() == DiffEntry.ChangeType.RENAME )
+                        {
+                            new File( workTree, file.getOldPath() ).delete();
+                            removed.add( file.getOldPath() );
+                        }
+                        added.put( file.getNewPath(), file.getNewMode() );
+                        break;
+                }
+            }
+            stage( git.getRepository(), added, removed );
+
+            Header header = new Header( new String( bytes, Charsets.UTF_8 ) );
+            git.commit().setAuthor( header.author ).setMessage( header.message ).call();
+        } catch ( Exception ex )
+        {
+            for ( File file : created )
+            {
+                file.delete();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Updates the index for the files the patch wrote and removed. Files are
+     * staged by path like git am does, matching .gitignore does not keep a
+     * new file out of the commit as it would with git add.
+     */
+    private static void stage(Repository repository, Map<String, FileMode> added, List<String> removed) throws IOException
+    {
+        DirCache index = repository.lockDirCache();
+        try
+        {
+            ObjectInserter inserter = repository.newObjectInserter();
+            try
+            {
+                DirCacheEditor editor = index.editor();
+                for ( String path : removed )
+                {
+                    editor.add( new DirCacheEditor.DeletePath( path ) );
+                }
+                for ( Map.Entry<String, FileMode> entry : added.entrySet() )
+                {
+                    File file = new File( repository.getWorkTree(), entry.getKey() );
+                    final FileMode mode = entry.getValue();
+                    final long length = file.length();
+                    final long modified = file.lastModified();
+                    final ObjectId id;
+                    InputStream in = new FileInputStream( file );
+                    try
+                    {
+                        id = inserter.insert( Constants.OBJ_BLOB, length, in );
+                    } finally
+                    {
+                        in.close();
+                    }
+                    editor.add( new DirCacheEditor.PathEdit( entry.getKey() )
+                    {
+                        @Override
+                        public void apply(DirCacheEntry ent)
+                        {
+                            if ( mode != null && mode != FileMode.MISSING )
+                            {
+                                ent.setFileMode( mode );
+                            } else if ( ent.getRawMode() == 0 )
+                            {
+                                ent.setFileMode( FileMode.REGULAR_FILE );
+                            }
+                            ent.setObjectId( id );
+                            ent.setLength( length );
+                            ent.setLastModified( modified );
+                        }
+                    } );
+                }
+                editor.finish();
+                inserter.flush();
+            } finally
+            {
+                inserter.release();
+            }
+            index.write();
+            index.commit();
+        } finally
+        {
+            index.unlock();
+        }
+    }
+
+    /**
+     * Checks that the file a patch deletes is the file it removes line by
+     * line, as git am does.
+     */
+    private static void checkDeleted(FileHeader file, File deleted) throws IOException
+    {
+        if ( !deleted.isFile() )
+        {
+            throw new IOException( "Could not delete " + file.getOldPath() + ", it does not exist" );
+        }
+        long left = deleted.length();
+        if ( !file.getHunks().isEmpty() )
+        {
+            File tmp = File.createTempFile( "deleted", ".tmp" );
+            try
+            {
+                StreamingPatch.apply( hunks( file ), file.getOldPath(), deleted.getName(), ByteBuffer.wrap( Files.toByteArray( deleted ) ), tmp );
+                left = tmp.length();
+            } finally
+            {
+                tmp.delete();
+            }
+        }
+        if ( left != 0 )
+        {
+            throw new IOException( file.getOldPath() + " has lines the patch deleting it does not remove" );
+        }
+    }
+
+    private static BufferedReader hunks(FileHeader file)
+    {
+        List<? extends HunkHeader> hunks = file.getHunks();
+        int start = hunks.get( 0 ).getStartOffset();
+        int end = hunks.get( hunks.size() - 1 ).getEndOffset();
+        return new BufferedReader( new StringReader( new String( file.getBuffer(), start, end - start, Charsets.UTF_8 ) ) );
+    }
+
+    /**
+     * The lines a patch adds to a new file, byte for byte with the line
+     * endings they have in the patch.
+     */
+    private static byte[] added(FileHeader file)
+    {
+        byte[] buffer = file.getBuffer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int lastEnding = 0;
+        for ( HunkHeader hunk : file.getHunks() )
+        {
+            int lines = hunk.getNewLineCount();
+            // Past the @@ line
+            int pos = lineEnd( buffer, hunk.getStartOffset(), hunk.getEndOffset() );
+            while ( pos < hunk.getEndOffset() )
+            {
+                int end = lineEnd( buffer, pos, hunk.getEndOffset() );
+                if ( buffer[pos] == '+' && lines > 0 )
+                {
+                    out.write( buffer, pos + 1, end - pos - 1 );
+                    lastEnding = ( buffer[end - 1] != '\n' ) ? 0 : ( end - 2 > pos && buffer[end - 2] == '\r' ) ? 2 : 1;
+                    lines--;
+                } else if ( buffer[pos] == '\\' )
+                {
+                    // \ No newline at end of file
+                    byte[] bytes = out.toByteArray();
+                    out.reset();
+                    out.write( bytes, 0, bytes.length - lastEnding );
+                    lastEnding = 0;
+                } else if ( lines == 0 )
+                {
+                    break;
+                }
+                pos = end;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static int lineEnd(byte[] buffer, int start, int limit)
+    {
+        int end = start;
+        while ( end < limit && buffer[end++] != '\n' )
+        {
+        }
+        return end;
+    }
+
+    private static void write(FileHeader file, File clean, File target) throws IOException
+    {
+        Files.createParentDirs( target );
+        File tmp = new File( target.getParentFile(), target.getName() + ".tmp" );
+        if ( clean == null )
+        {
+            Files.write( added( file ), tmp );
+        } else if ( file.getHunks().isEmpty() )
+        {
+            // A rename or copy without changes
+            Files.copy( clean, tmp );
+        } else
+        {
+            try
+            {
+                // Applied to a copy, a mapping of the clean file would keep it from being replaced on Windows
+                StreamingPatch.apply( hunks( file ), file.getNewPath(), clean.getName(), ByteBuffer.wrap( Files.toByteArray( clean ) ), tmp );
+            } catch ( IOException ex )
+            {
+                tmp.delete();
+                throw ex;
+            }
+        }
+        if ( file.getNewMode() == FileMode.EXECUTABLE_FILE )
+        {
+            tmp.setExecutable( true );
+        }
+        Builder.replaceFile( tmp, target );
+    }
+
+    /**
+     * Author and commit message from the mail headers of a patch.
+     */
+    private static class Header
+    {
+
+        private final PersonIdent author;
+        private final String message;
+
+        private Header(String patch) throws IOException
+        {
+            String from = null;
+            String date = null;
+            String subject = null;
+            StringBuilder body = new StringBuilder();
+
+            BufferedReader reader = new BufferedReader( new StringReader( patch ) );
+            String line;
+            String last = null;
+            // Headers, continued on lines starting with white space
+            while ( ( line = reader.readLine() ) != null && !line.isEmpty() )
+            {
+                if ( Character.isWhitespace( line.charAt( 0 ) ) && last != null )
+                {
+                    if ( last.equals( "Subject" ) )
+                    {
+                        subject += line;
+                    } else if ( last.equals( "From" ) )
+                    {
+                        from += line;
+                    }
+                    continue;
+                }
+                int colon = line.indexOf( ':' );
+                last = ( colon == -1 ) ? null : line.substring( 0, colon );
+                String value = ( colon == -1 ) ? null : line.substring( colon + 1 ).trim();
+                if ( "From".equals( last ) )
+                {
+                    from = value;
+                } else if ( "Date".equals( last ) )
+                {
+                    date = value;
+                } else if ( "Subject".equals( last ) )
+                {
+                    subject = value;
+                }
+            }
+            while ( ( line = reader.readLine() ) != null && !line.equals( "---" ) && !line.startsWith( "diff --git " ) )
+            {
+                body.append( line ).append( '\n' );
+            }
+            if ( from == null || subject == null )
+            {
+                throw new IOException( "Patch has no author or subject" );
+            }
+
+            // Like git am, drop [PATCH n/m] and any other bracketed prefix
+            subject = decode( subject ).replaceFirst( "^(\\s*\\[[^\\]]*\\])+\\s*", "" ).replaceAll( "\\s+", " " ).trim();
+            String text = body.toString().trim();
+            message = ( text.isEmpty() ) ? subject + "\n" : subject + "\n\n" + text + "\n";
+
+            from = decode( from );
+            int lt = from.lastIndexOf( '<' );
+            String name = ( lt == -1 ) ? from : from.substring( 0, lt ).trim().replaceAll( "^\"|\"$", "" );
+            String email = ( lt == -1 ) ? "" : from.substring( lt + 1, from.indexOf( '>', lt ) );
+
+            Date when = new Date();
+            TimeZone zone = TimeZone.getDefault();
+            if ( date != null )
+            {
+                try
+                {
+                    when = new SimpleDateFormat( "EEE, d MMM yyyy HH:mm:ss Z", Locale.US ).parse( date );
+                    String offset = date.substring( date.lastIndexOf( ' ' ) + 1 );
+                    zone = TimeZone.getTimeZone( "GMT" + offset.substring( 0, 3 ) + ":" + offset.substring( 3 ) );
+                } catch ( ParseException ex )
+                {
+                    // Keep the current time, like git am with a broken date
+                }
+            }
+            author = new PersonIdent( name, email, when, zone );
+        }
+
+        /**
+         * Decodes the RFC 2047 encoded words git format-patch uses for names
+         * and subjects which are not plain ASCII.
+         */
+        private static String decode(String value)
+        {
+            // White space between two encoded words is not part of the text
+            Matcher matcher = ENCODED_WORD.matcher( value.replaceAll( "\\?=\\s+=\\?", "?==?" ) );
+            StringBuffer out = new StringBuffer();
+            while ( matcher.find() )
+            {
+                String decoded;
+                try
+                {
+                    byte[] bytes;
+                    if ( matcher.group( 2 ).equalsIgnoreCase( "B" ) )
+                    {
+                        bytes = BaseEncoding.base64().decode( matcher.group( 3 ) );
+                    } else
+                    {
+                        String text = matcher.group( 3 ).replace( '_', ' ' );
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                        for ( int i = 0; i < text.length(); i++ )
+                        {
+                            char c = text.charAt( i );
+                            if ( c == '=' && i + 2 < text.length() )
+                            {
+                                buffer.write( Integer.parseInt( text.substring( i + 1, i + 3 ), 16 ) );
+                                i += 2;
+                            } else
+                            {
+                                buffer.write( c );
+                            }
+                        }
+                        bytes = buffer.toByteArray();
+                    }
+                    decoded = new String( bytes, matcher.group( 1 ) );
+                } catch ( Exception ex )
+                {
+                    decoded = matcher.group();
+                }
+                matcher.appendReplacement( out, Matcher.quoteReplacement( decoded ) );
+            }
+            matcher.appendTail( out );
+            return out.toString();
+        }
+    }
+}
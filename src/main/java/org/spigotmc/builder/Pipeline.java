@@ -0,0 +1,394 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Runs a graph of {@link Stage}s on a bounded worker pool. A stage is started
+ * as soon as every stage producing one of its inputs has finished, so stages
+ * which do not depend on each other overlap. When more stages are ready than
+ * there are threads, those with the longest chain of stages behind them, by
+ * the durations in the {@link StageHistory}, go first. Stages declaring
+ * memory only start once the {@link ResourceGovernor} has that much free,
+ * lighter stages may overtake them meanwhile.
+ */
+public class Pipeline
+{
+
+    /**
+     * Assumed duration of stages which never ran before.
+     */
+    private static final long DEFAULT_ESTIMATE = 1000;
+    private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+    private final Map<String, Stage> producers = new HashMap<String, Stage>();
+    private final List<Runnable> finishers = new ArrayList<Runnable>();
+    @Setter
+    private StageHistory history;
+    @Setter
+    private ResourceGovernor resources;
+
+    public Pipeline add(Stage stage)
+    {
+        Preconditions.checkArgument( !stages.containsKey( stage.getName() ), "Duplicate stage %s", stage.getName() );
+        for ( String output : stage.getOutputs() )
+        {
+            Stage other = producers.get( output );
+            Preconditions.checkArgument( other == null, "%s is produced by both %s and %s", output, stage.getName(), ( other == null ) ? null : other.getName() );
+            producers.put( output, stage );
+        }
+        stages.put( stage.getName(), stage );
+        return this;
+    }
+
+    /**
+     * Runs the task once the pipeline is over, whether it succeeded or not.
+     */
+    public Pipeline onFinish(Runnable task)
+    {
+        finishers.add( task );
+        return this;
+    }
+
+    /**
+     * Resolves the stages each stage has to wait for, failing if an input has
+     * no producer or the graph contains a cycle.
+     */
+    private Map<Stage, Set<Stage>> resolve()
+    {
+        Map<Stage, Set<Stage>> dependencies = new HashMap<Stage, Set<Stage>>();
+        for ( Stage stage : stages.values() )
+        {
+            Set<Stage> deps = new HashSet<Stage>();
+            for ( String input : stage.getInputs() )
+            {
+                Stage producer = producers.get( input );
+                Preconditions.checkState( producer != null, "Stage %s requires %s, but nothing produces it", stage.getName(), input );
+                deps.add( producer );
+            }
+            dependencies.put( stage, deps );
+        }
+
+        Set<Stage> ordered = new HashSet<Stage>();
+        boolean progress = true;
+        while ( progress )
+        {
+            progress = false;
+            for ( Stage stage : stages.values() )
+            {
+                if ( !ordered.contains( stage ) && ordered.containsAll( dependencies.get( stage ) ) )
+                {
+                    ordered.add( stage );
+                    progress = true;
+                }
+            }
+        }
+        if ( ordered.size() != stages.size() )
+        {
+            Set<String> cyclic = new LinkedHashSet<String>( stages.keySet() );
+            for ( Stage stage : ordered )
+            {
+                cyclic.remove( stage.getName() );
+            }
+            throw new IllegalStateException( "Stage graph contains a cycle between " + cyclic );
+        }
+
+        return dependencies;
+    }
+
+    public void run(int threads) throws Exception
+    {
+        Map<Stage, Set<Stage>> dependencies = resolve();
+        Map<Stage, Long> estimates = new HashMap<Stage, Long>();
+        for ( Stage stage : stages.values() )
+        {
+            long estimate = ( history == null ) ? -1 : history.estimate( stage.getName() );
+            estimates.put( stage, ( estimate == -1 ) ? DEFAULT_ESTIMATE : estimate );
+        }
+        final Map<Stage, Long> ranks = rank( dependencies, estimates );
+        boolean eta = history != null && !history.isEmpty();
+
+        ExecutorService executor = Executors.newFixedThreadPool( threads, new ThreadFactoryBuilder().setNameFormat( "Stage Worker #%d" ).build() );
+        CompletionService<Stage> completion = new ExecutorCompletionService<Stage>( executor );
+
+        Set<Stage> pending = new LinkedHashSet<Stage>( stages.values() );
+        Set<Stage> done = new HashSet<Stage>();
+        Map<Stage, Long> running = new HashMap<Stage, Long>();
+        Throwable failure = null;
+        try
+        {
+            while ( true )
+            {
+                // Once something failed we only wait for the stages already running
+                List<Stage> ready = new ArrayList<Stage>();
+                if ( failure == null )
+                {
+                    for ( Stage stage : pending )
+                    {
+                        if ( done.containsAll( dependencies.get( stage ) ) )
+                        {
+                            ready.add( stage );
+                        }
+                    }
+                }
+                // Longest way to the end of the build first, so no long chain starts late
+                Collections.sort( ready, new Comparator<Stage>()
+                {
+                    @Override
+                    public int compare(Stage o1, Stage o2)
+                    {
+                        return Long.valueOf( ranks.get( o2 ) ).compareTo( ranks.get( o1 ) );
+                    }
+                } );
+                for ( Stage stage : ready )
+                {
+                    if ( running.size() >= threads )
+                    {
+                        break;
+                    }
+                    if ( resources != null && !resources.tryAcquire( stage.getMemory() ) )
+                    {
+                        if ( !running.isEmpty() )
+                        {
+                            continue;
+                        }
+                        // Nothing of ours will free memory, wait for other builds to
+                        resources.acquire( stage.getMemory() );
+                    }
+                    pending.remove( stage );
+                    completion.submit( new StageTask( stage, history ) );
+                    running.put( stage, System.currentTimeMillis() );
+                }
+                if ( running.isEmpty() )
+                {
+                    break;
+                }
+
+                Future<Stage> finished = completion.take();
+                try
+                {
+                    Stage stage = finished.get();
+                    release( stage );
+                    running.remove( stage );
+                    done.add( stage );
+                } catch ( ExecutionException ex )
+                {
+                    Stage stage = ( (StageFailure) ex.getCause() ).getStage();
+                    release( stage );
+                    running.remove( stage );
+                    if ( failure == null )
+                    {
+                        failure = ex.getCause().getCause();
+                    }
+                }
+                if ( eta && failure == null && !( pending.isEmpty() && running.isEmpty() ) )
+                {
+                    System.out.println( "Estimated time remaining: " + format( remaining( threads, pending, running, dependencies, done, estimates, ranks ) ) );
+                }
+            }
+        } finally
+        {
+            executor.shutdownNow();
+            for ( Stage stage : running.keySet() )
+            {
+                release( stage );
+            }
+            // Each runs even if another fails, the first stage failure stays the one thrown
+            for ( Runnable finisher : finishers )
+            {
+                try
+                {
+                    finisher.run();
+                } catch ( Throwable ex )
+                {
+                    System.err.println( "**** Could not finish the build: " + ex );
+                    if ( failure == null )
+                    {
+                        failure = ex;
+                    }
+                }
+            }
+            if ( history != null )
+            {
+                try
+                {
+                    history.save();
+                } catch ( IOException ex )
+                {
+                    System.err.println( "**** Could not save the stage history: " + ex );
+                    if ( failure == null )
+                    {
+                        failure = ex;
+                    }
+                }
+            }
+        }
+
+        if ( failure != null )
+        {
+            Throwables.propagateIfPossible( failure, Exception.class );
+            throw Throwables.propagate( failure );
+        }
+    }
+
+    private void release(Stage stage)
+    {
+        if ( resources != null )
+        {
+            resources.release( stage.getMemory() );
+        }
+    }
+
+    /**
+     * The expected time from the start of each stage to the end of the build,
+     * its own duration plus the longest chain of stages waiting for it.
+     */
+    private Map<Stage, Long> rank(Map<Stage, Set<Stage>> dependencies, Map<Stage, Long> estimates)
+    {
+        Map<Stage, Set<Stage>> dependents = new HashMap<Stage, Set<Stage>>();
+        for ( Stage stage : stages.values() )
+        {
+            dependents.put( stage, new HashSet<Stage>() );
+        }
+        for ( Map.Entry<Stage, Set<Stage>> entry : dependencies.entrySet() )
+        {
+            for ( Stage dependency : entry.getValue() )
+            {
+                dependents.get( dependency ).add( entry.getKey() );
+            }
+        }
+
+        Map<Stage, Long> ranks = new HashMap<Stage, Long>();
+        for ( Stage stage : stages.values() )
+        {
+            rank( stage, dependents, estimates, ranks );
+        }
+        return ranks;
+    }
+
+    private static long rank(Stage stage, Map<Stage, Set<Stage>> dependents, Map<Stage, Long> estimates, Map<Stage, Long> ranks)
+    {
+        Long rank = ranks.get( stage );
+        if ( rank == null )
+        {
+            long longest = 0;
+            for ( Stage dependent : dependents.get( stage ) )
+            {
+                longest = Math.max( longest, rank( dependent, dependents, estimates, ranks ) );
+            }
+            rank = estimates.get( stage ) + longest;
+            ranks.put( stage, rank );
+        }
+        return rank;
+    }
+
+    /**
+     * Expected time until the build is over, the longer of the longest chain
+     * still ahead and the remaining work spread over all threads.
+     */
+    private static long remaining(int threads, Set<Stage> pending, Map<Stage, Long> running, Map<Stage, Set<Stage>> dependencies, Set<Stage> done,
+            Map<Stage, Long> estimates, Map<Stage, Long> ranks)
+    {
+        long now = System.currentTimeMillis();
+        long chain = 0;
+        long work = 0;
+        for ( Map.Entry<Stage, Long> entry : running.entrySet() )
+        {
+            Stage stage = entry.getKey();
+            long left = Math.max( 0, estimates.get( stage ) - ( now - entry.getValue() ) );
+            chain = Math.max( chain, left + ranks.get( stage ) - estimates.get( stage ) );
+            work += left;
+        }
+        for ( Stage stage : pending )
+        {
+            if ( done.containsAll( dependencies.get( stage ) ) )
+            {
+                chain = Math.max( chain, ranks.get( stage ) );
+            }
+            work += estimates.get( stage );
+        }
+        return Math.max( chain, work / threads );
+    }
+
+    private static String format(long millis)
+    {
+        long seconds = TimeUnit.MILLISECONDS.toSeconds( millis );
+        return ( seconds >= 60 ) ? String.format( "%dm %02ds", seconds / 60, seconds % 60 ) : seconds + "s";
+    }
+
+    /**
+     * Failure of a stage, tells the scheduler which stage is no longer
+     * running.
+     */
+    @Getter
+    private static class StageFailure extends Exception
+    {
+
+        private static final long serialVersionUID = 1L;
+        private final transient Stage stage;
+
+        private StageFailure(Stage stage, Throwable cause)
+        {
+            super( cause );
+            this.stage = stage;
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class StageTask implements Callable<Stage>
+    {
+
+        private final Stage stage;
+        private final StageHistory history;
+
+        @Override
+        public Stage call() throws Exception
+        {
+            String threadName = Thread.currentThread().getName();
+            Thread.currentThread().setName( stage.getName() );
+            BuildReport.setStage( stage.getName() );
+            BuildReport.Span span = BuildReport.start( "stage", stage.getName() );
+            long start = System.currentTimeMillis();
+            try
+            {
+                stage.run();
+                span.succeeded();
+                if ( history != null )
+                {
+                    history.record( stage.getName(), System.currentTimeMillis() - start );
+                }
+            } catch ( Throwable t )
+            {
+                throw new StageFailure( stage, new Exception( "Stage " + stage.getName() + " failed", t ) );
+            } finally
+            {
+                span.end();
+                BuildReport.setStage( null );
+                Thread.currentThread().setName( threadName );
+            }
+            return stage;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import lombok.RequiredArgsConstructor;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.BatchingProgressMonitor;
+
+/**
+ * Clones or fetches a batch of repositories at once. Network round trips
+ * dominate these operations, so they are run side by side on a small pool
+ * and every failure is collected into a single report instead of stopping
+ * at the first one.
+ */
+@RequiredArgsConstructor
+public class RepositorySync
+{
+
+    private final int threads;
+    private final Map<String, Callable<Void>> jobs = new LinkedHashMap<String, Callable<Void>>();
+
+    public RepositorySync clone(final String url, final File target)
+    {
+        final String name = target.getName();
+        jobs.put( name, new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                try
+                {
+                    Builder.clone( url, target, new Progress( name ) );
+                } catch ( Exception ex )
+                {
+                    // Don't leave a half cloned repository behind, the next run would treat it as present
+                    FileUtils.deleteQuietly( target );
+                    throw ex;
+                }
+                return null;
+            }
+        } );
+        return this;
+    }
+
+    public RepositorySync pull(final Git repo, final String ref)
+    {
+        final String name = repo.getRepository().getWorkTree().getName();
+        jobs.put( name, new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                Builder.pull( repo, ref, new Progress( name ) );
+                return null;
+            }
+        } );
+        return this;
+    }
+
+    public void run() throws Exception
+    {
+        if ( jobs.isEmpty() )
+        {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, jobs.size() ), new ThreadFactoryBuilder().setNameFormat( "Git Worker #%d" ).build() );
+        Map<String, Future<Void>> results = new LinkedHashMap<String, Future<Void>>();
+        try
+        {
+            for ( Map.Entry<String, Callable<Void>> job : jobs.entrySet() )
+            {
+                results.put( job.getKey(), executor.submit( job.getValue() ) );
+            }
+
+            Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+            for ( Map.Entry<String, Future<Void>> result : results.entrySet() )
+            {
+                try
+                {
+                    result.getValue().get();
+                } catch ( ExecutionException ex )
+                {
+                    failures.put( result.getKey(), ex.getCause() );
+                }
+            }
+
+            if ( !failures.isEmpty() )
+            {
+                StringBuilder report = new StringBuilder( "Failed to update " + failures.size() + " of " + jobs.size() + " repositories:" );
+                for ( Map.Entry<String, Throwable> failure : failures.entrySet() )
+                {
+                    report.append( "\n - " ).append( failure.getKey() ).append( ": " ).append( Throwables.getRootCause( failure.getValue() ) );
+                }
+                System.err.println( "**** " + report );
+                throw new Exception( report.toString(), failures.values().iterator().next() );
+            }
+        } finally
+        {
+            executor.shutdownNow();
+            jobs.clear();
+        }
+    }
+
+    /**
+     * Prints JGit progress prefixed with the repository it belongs to, at most
+     * once a second per task so concurrent operations stay readable.
+     */
+    @RequiredArgsConstructor
+    private static class Progress extends BatchingProgressMonitor
+    {
+
+        private final String name;
+        private long lastUpdate;
+
+        private boolean throttle()
+        {
+            long now = System.currentTimeMillis();
+            if ( now - lastUpdate < 1000 )
+            {
+                return true;
+            }
+            lastUpdate = now;
+            return false;
+        }
+
+        @Override
+        protected void onUpdate(String taskName, int workCurr)
+        {
+            if ( throttle() )
+            {
+                return;
+            }
+            System.out.println( "[" + name + "] " + taskName + ": " + workCurr );
+        }
+
+        @Override
+        protected void onEndTask(String taskName, int workCurr)
+        {
+            System.out.println( "[" + name + "] " + taskName + ": " + workCurr + ", done." );
+        }
+
+        @Override
+        protected void onUpdate(String taskName, int workCurr, int workTotal, int percentDone)
+        {
+            if ( throttle() )
+            {
+                return;
+            }
+            System.out.println( "[" + name + "] " + taskName + ": " + percentDone + "% (" + workCurr + "/" + workTotal + ")" );
+        }
+
+        @Override
+        protected void onEndTask(String taskName, int workCurr, int workTotal, int percentDone)
+        {
+            System.out.println( "[" + name + "] " + taskName + ": " + percentDone + "% (" + workCurr + "/" + workTotal + "), done." );
+        }
+    }
+}
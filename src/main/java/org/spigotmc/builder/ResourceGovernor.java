@@ -0,0 +1,223 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.concurrent.Semaphore;
+import lombok.Getter;
+
+/**
+ * Decides how much of the host the build may use. Cores and memory are read
+ * from the system, honouring the limits of a container's cgroup, unless they
+ * are given. The memory left over by this JVM is the budget for heavy stages:
+ * a stage declaring the memory it needs only starts once that much of the
+ * budget is free, so forked JVMs running side by side never add up to more
+ * than the host has. Every forked JVM and Maven gets the same heap, sized so
+ * one per core fits into the budget.
+ */
+@Getter
+public class ResourceGovernor
+{
+
+    /**
+     * Left to the operating system and everything else running on the host.
+     */
+    private static final long RESERVE = 512;
+    private static final int MIN_HEAP = 512;
+    private static final int MAX_HEAP = 2048;
+    private final int cores;
+    private final long memory;
+    private final int childHeap;
+    private final Semaphore free;
+
+    /**
+     * Creates the governor, anything given as 0 is detected.
+     *
+     * @param cores cores the build may use
+     * @param memory megabytes the child processes may use in total
+     * @param childHeap heap of every forked JVM in megabytes
+     */
+    public ResourceGovernor(int cores, long memory, int childHeap)
+    {
+        this.cores = ( cores > 0 ) ? cores : detectCores();
+        long budget = memory;
+        if ( budget <= 0 )
+        {
+            budget = detectMemory() - Runtime.getRuntime().maxMemory() / 1024 / 1024 - RESERVE;
+        }
+        if ( childHeap <= 0 )
+        {
+            childHeap = (int) Math.max( MIN_HEAP, Math.min( MAX_HEAP, budget / this.cores ) );
+        }
+        this.childHeap = childHeap;
+        // Enough for at least one child, however small the host
+        this.memory = Math.max( budget, childHeap );
+        this.free = new Semaphore( (int) this.memory, true );
+    }
+
+    /**
+     * The -Xmx option for a forked JVM.
+     */
+    public String heapOption()
+    {
+        return "-Xmx" + childHeap + "M";
+    }
+
+    /**
+     * Number of fernflower instances to run at once, one per core as long as
+     * their heaps fit into the budget.
+     */
+    public int decompileThreads()
+    {
+        return (int) Math.max( 1, Math.min( cores, memory / childHeap ) );
+    }
+
+    /**
+     * Number of Maven threads, one per core, with at least 256 MB of the
+     * Maven heap for each.
+     */
+    public int mavenThreads()
+    {
+        return Math.max( 1, Math.min( cores, childHeap / 256 ) );
+    }
+
+    /**
+     * Takes the memory from the budget if that much is free right now.
+     */
+    public boolean tryAcquire(int megabytes)
+    {
+        return free.tryAcquire( clamp( megabytes ) );
+    }
+
+    /**
+     * Takes the memory from the budget, waiting until that much is free.
+     */
+    public void acquire(int megabytes) throws InterruptedException
+    {
+        free.acquire( clamp( megabytes ) );
+    }
+
+    public void release(int megabytes)
+    {
+        free.release( clamp( megabytes ) );
+    }
+
+    /**
+     * Asking for more than the budget waits for all of it, instead of
+     * forever.
+     */
+    private int clamp(int megabytes)
+    {
+        return (int) Math.min( megabytes, memory );
+    }
+
+    @Override
+    public String toString()
+    {
+        return cores + " cores, " + memory + " MB for child processes with a heap of " + childHeap + " MB each";
+    }
+
+    private static int detectCores()
+    {
+        int cores = Runtime.getRuntime().availableProcessors();
+        // cgroup v2, "<quota> <period>" or "max <period>"
+        String[] max = read( "/sys/fs/cgroup/cpu.max" ).split( " " );
+        long quota = ( max.length == 2 ) ? parse( max[0] ) : -1;
+        long period = ( max.length == 2 ) ? parse( max[1] ) : -1;
+        if ( quota <= 0 || period <= 0 )
+        {
+            // cgroup v1
+            quota = parse( read( "/sys/fs/cgroup/cpu/cpu.cfs_quota_us" ) );
+            period = parse( read( "/sys/fs/cgroup/cpu/cpu.cfs_period_us" ) );
+        }
+        if ( quota > 0 && period > 0 )
+        {
+            cores = (int) Math.min( cores, Math.max( 1, ( quota + period - 1 ) / period ) );
+        }
+        return cores;
+    }
+
+    /**
+     * Memory of the host in megabytes, or of the cgroup if that is less.
+     */
+    private static long detectMemory()
+    {
+        long memory = -1;
+        for ( String line : read( "/proc/meminfo" ).split( "\n" ) )
+        {
+            if ( line.startsWith( "MemTotal:" ) )
+            {
+                memory = parse( line.substring( "MemTotal:".length() ).replace( "kB", "" ) ) / 1024;
+            }
+        }
+        if ( memory <= 0 )
+        {
+            memory = physicalMemory();
+        }
+
+        long limit = parse( read( "/sys/fs/cgroup/memory.max" ) );
+        if ( limit <= 0 )
+        {
+            limit = parse( read( "/sys/fs/cgroup/memory/memory.limit_in_bytes" ) );
+        }
+        // Unlimited cgroups report "max" or a number larger than any host
+        if ( limit > 0 && ( memory <= 0 || limit / 1024 / 1024 < memory ) )
+        {
+            memory = limit / 1024 / 1024;
+        }
+
+        if ( memory <= 0 )
+        {
+            System.err.println( "Could not detect the memory of this machine, assuming 4096 MB" );
+            memory = 4096;
+        }
+        return memory;
+    }
+
+    /**
+     * Physical memory as the HotSpot management bean reports it, for hosts
+     * without /proc.
+     */
+    private static long physicalMemory()
+    {
+        try
+        {
+            Object bean = ManagementFactory.getOperatingSystemMXBean();
+            Method method = Class.forName( "com.sun.management.OperatingSystemMXBean" ).getMethod( "getTotalPhysicalMemorySize" );
+            return (Long) method.invoke( bean ) / 1024 / 1024;
+        } catch ( Exception ex )
+        {
+            return -1;
+        }
+    }
+
+    private static String read(String path)
+    {
+        File file = new File( path );
+        if ( !file.isFile() )
+        {
+            return "";
+        }
+        try
+        {
+            return Files.toString( file, Charsets.UTF_8 ).trim();
+        } catch ( IOException ex )
+        {
+            return "";
+        }
+    }
+
+    private static long parse(String value)
+    {
+        try
+        {
+            return Long.parseLong( value.trim() );
+        } catch ( NumberFormatException ex )
+        {
+            return -1;
+        }
+    }
+}
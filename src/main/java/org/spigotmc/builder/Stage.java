@@ -0,0 +1,59 @@
+package org.spigotmc.builder;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import lombok.Getter;
+
+/**
+ * A single step of the build. Stages declare the named artifacts they consume
+ * and produce, the {@link Pipeline} uses these to work out which stages may
+ * run alongside each other.
+ */
+@Getter
+public abstract class Stage
+{
+
+    private final String name;
+    private final Set<String> inputs = new LinkedHashSet<String>();
+    private final Set<String> outputs = new LinkedHashSet<String>();
+    /**
+     * Megabytes of the {@link ResourceGovernor}'s budget the stage needs.
+     */
+    private int memory;
+
+    public Stage(String name)
+    {
+        this.name = name;
+    }
+
+    public Stage consumes(String... artifacts)
+    {
+        Collections.addAll( inputs, artifacts );
+        return this;
+    }
+
+    public Stage produces(String... artifacts)
+    {
+        Collections.addAll( outputs, artifacts );
+        return this;
+    }
+
+    /**
+     * Declares the memory the stage's child processes need, the pipeline
+     * holds the stage back until that much is free.
+     */
+    public Stage memory(int megabytes)
+    {
+        this.memory = megabytes;
+        return this;
+    }
+
+    public abstract void run() throws Exception;
+
+    @Override
+    public String toString()
+    {
+        return name + " " + inputs + " -> " + outputs;
+    }
+}
@@ -0,0 +1,80 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * How long the stages of previous builds took, kept as a moving average so a
+ * single unusual run does not throw the estimates off.
+ */
+@RequiredArgsConstructor
+public class StageHistory
+{
+
+    private final File file;
+    private Map<String, Long> durations;
+
+    /**
+     * Expected duration of the stage in milliseconds, or -1 if it never ran.
+     */
+    public synchronized long estimate(String stage)
+    {
+        Long duration = durations().get( stage );
+        return ( duration == null ) ? -1 : duration;
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return durations().isEmpty();
+    }
+
+    public synchronized void record(String stage, long millis)
+    {
+        Long previous = durations().get( stage );
+        durations().put( stage, ( previous == null ) ? millis : ( previous + millis ) / 2 );
+    }
+
+    private Map<String, Long> durations()
+    {
+        if ( durations == null )
+        {
+            durations = new TreeMap<String, Long>();
+            if ( file.isFile() )
+            {
+                try
+                {
+                    Map<String, Long> saved = new GsonBuilder().create().fromJson( Files.toString( file, Charsets.UTF_8 ), new TypeToken<Map<String, Long>>()
+                    {
+                    }.getType() );
+                    if ( saved != null )
+                    {
+                        durations.putAll( saved );
+                    }
+                } catch ( IOException ex )
+                {
+                    System.err.println( "Could not read stage history " + file + ", starting over" );
+                } catch ( JsonParseException ex )
+                {
+                    System.err.println( "Could not read stage history " + file + ", starting over" );
+                }
+            }
+        }
+        return durations;
+    }
+
+    public synchronized void save() throws IOException
+    {
+        Files.createParentDirs( file );
+        File tmp = new File( file.getParentFile(), file.getName() + ".tmp" );
+        Files.write( new GsonBuilder().setPrettyPrinting().create().toJson( durations() ), tmp, Charsets.UTF_8 );
+        Builder.replaceFile( tmp, file );
+    }
+}
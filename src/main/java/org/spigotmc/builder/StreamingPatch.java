@@ -0,0 +1,308 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Applies a unified diff to a file without loading either of them. The clean
+ * file is mapped into memory and the ranges between hunks are copied to the
+ * output as they are. Only the hunk being applied is held in memory, its
+ * lines are checked against the clean file byte by byte and must match
+ * exactly, like with DiffUtils. Lines coming from the patch are written as
+ * UTF-8, ending like the lines of the clean file. Like git, the end of the
+ * file only changes when the last hunk reaches it, its last line then ends
+ * with a new line unless the patch marks it with "\ No newline at end of
+ * file".
+ */
+@RequiredArgsConstructor
+public class StreamingPatch
+{
+
+    private static final Pattern HUNK = Pattern.compile( "^@@\\s+-(\\d+)(?:,(\\d+))?\\s+\\+(\\d+)(?:,(\\d+))?\\s+@@.*$" );
+    private final File patchFile;
+
+    /**
+     * Writes the clean file with the patch applied to the target.
+     *
+     * @return the number of hunks applied
+     */
+    public int apply(File clean, File target) throws IOException
+    {
+        BufferedReader patch = new BufferedReader( new InputStreamReader( new FileInputStream( patchFile ), Charsets.UTF_8 ) );
+        try
+        {
+            return apply( patch, patchFile.getName(), clean, target );
+        } finally
+        {
+            patch.close();
+        }
+    }
+
+    /**
+     * Applies the hunks read from the patch to the clean file, which is null
+     * for a file the patch creates.
+     *
+     * @return the number of hunks applied
+     */
+    static int apply(BufferedReader patch, String name, File clean, File target) throws IOException
+    {
+        if ( clean == null )
+        {
+            return apply( patch, name, null, ByteBuffer.allocate( 0 ), target );
+        }
+        FileInputStream in = new FileInputStream( clean );
+        try
+        {
+            return apply( patch, name, clean.getName(), in.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, in.getChannel().size() ), target );
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Applies the hunks read from the patch to the contents of the clean
+     * file, which is named null for a file the patch creates. Callers
+     * replacing the clean file pass a copy of it, the mapping of a file
+     * stays open until it is garbage collected and keeps Windows from
+     * replacing the file.
+     *
+     * @return the number of hunks applied
+     */
+    static int apply(BufferedReader patch, String name, String cleanName, ByteBuffer clean, File target) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream( target );
+        try
+        {
+            Source source = new Source( clean );
+            FileChannel output = out.getChannel();
+            boolean newLineAtEnd = true;
+
+            int hunks = 0;
+            String line;
+            while ( ( line = patch.readLine() ) != null )
+            {
+                Matcher header = HUNK.matcher( line );
+                if ( !header.matches() )
+                {
+                    // File headers and anything else outside of a hunk
+                    continue;
+                }
+                hunks++;
+                int oldStart = Integer.parseInt( header.group( 1 ) );
+                int oldCount = ( header.group( 2 ) == null ) ? 1 : Integer.parseInt( header.group( 2 ) );
+                int newCount = ( header.group( 4 ) == null ) ? 1 : Integer.parseInt( header.group( 4 ) );
+                // A hunk removing nothing inserts after its start line, any other starts at it
+                int firstLine = ( oldCount == 0 ) ? oldStart + 1 : oldStart;
+
+                if ( firstLine - 1 < source.line )
+                {
+                    throw new IOException( "Hunk " + hunks + " of " + name + " starts at line " + firstLine + ", before the end of the previous hunk" );
+                }
+                source.copyTo( firstLine - 1, output );
+
+                ByteArrayOutputStream replacement = new ByteArrayOutputStream();
+                int oldLines = 0;
+                int newLines = 0;
+                char tag = ' ';
+                while ( oldLines < oldCount || newLines < newCount )
+                {
+                    String hunkLine = patch.readLine();
+                    if ( hunkLine == null )
+                    {
+                        throw new IOException( "Hunk " + hunks + " of " + name + " ends early" );
+                    }
+                    if ( hunkLine.startsWith( "\\" ) )
+                    {
+                        // \ No newline at end of file, for the old file only if it follows a removed line
+                        newLineAtEnd &= tag == '-';
+                        continue;
+                    }
+                    // Editors strip the space off empty context lines
+                    tag = ( hunkLine.isEmpty() ) ? ' ' : hunkLine.charAt( 0 );
+                    String text = ( hunkLine.isEmpty() ) ? "" : hunkLine.substring( 1 );
+                    if ( tag != ' ' && tag != '-' && tag != '+' )
+                    {
+                        throw new IOException( "Hunk " + hunks + " of " + name + " has a malformed line: " + hunkLine );
+                    }
+                    if ( tag != '+' )
+                    {
+                        if ( !source.skip( text ) )
+                        {
+                            throw new IOException( "Hunk " + hunks + " of " + name + " does not apply, line " + ( source.line + 1 ) + " of " + ( ( cleanName == null ) ? "the new file" : cleanName )
+                                    + " is not '" + text + "'" );
+                        }
+                        oldLines++;
+                    }
+                    if ( tag != '-' )
+                    {
+                        replacement.write( text.getBytes( Charsets.UTF_8 ) );
+                        replacement.write( source.newLine );
+                        newLines++;
+                    }
+                }
+                // The marker for the last line of the hunk follows it
+                patch.mark( 65536 );
+                String next = patch.readLine();
+                if ( next != null && next.startsWith( "\\" ) )
+                {
+                    newLineAtEnd &= tag == '-';
+                } else if ( next != null )
+                {
+                    patch.reset();
+                }
+                byte[] bytes = replacement.toByteArray();
+                int length = bytes.length;
+                if ( !newLineAtEnd && length > 0 )
+                {
+                    length -= source.newLine.length;
+                }
+                write( output, ByteBuffer.wrap( bytes, 0, length ) );
+            }
+
+            // Lines after the last hunk are kept as they are, new line at the end or not
+            source.copyTo( Integer.MAX_VALUE, output );
+            return hunks;
+        } finally
+        {
+            out.close();
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while ( buffer.hasRemaining() )
+        {
+            channel.write( buffer );
+        }
+    }
+
+    /**
+     * The clean file, read line by line from the front.
+     */
+    private static class Source
+    {
+
+        private final ByteBuffer buffer;
+        private final byte[] newLine;
+        /**
+         * Number of lines consumed so far.
+         */
+        private int line;
+
+        private Source(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+            this.newLine = detectNewLine( buffer );
+        }
+
+        private static byte[] detectNewLine(ByteBuffer buffer)
+        {
+            for ( int i = 0; i < buffer.limit(); i++ )
+            {
+                if ( buffer.get( i ) == '\n' )
+                {
+                    return ( i > 0 && buffer.get( i - 1 ) == '\r' ) ? new byte[]
+                    {
+                        '\r', '\n'
+                    } : new byte[]
+                    {
+                        '\n'
+                    };
+                }
+            }
+            return new byte[]
+            {
+                '\n'
+            };
+        }
+
+        /**
+         * Position just past the end of the line starting at the given
+         * position.
+         */
+        private int lineEnd(int start)
+        {
+            int end = start;
+            while ( end < buffer.limit() )
+            {
+                if ( buffer.get( end++ ) == '\n' )
+                {
+                    break;
+                }
+            }
+            return end;
+        }
+
+        /**
+         * Copies lines unchanged until the given number of lines has been
+         * consumed, or the file ends.
+         */
+        private void copyTo(int lines, FileChannel output) throws IOException
+        {
+            int start = buffer.position();
+            int end = start;
+            while ( line < lines && end < buffer.limit() )
+            {
+                end = lineEnd( end );
+                line++;
+            }
+            if ( line < lines && lines != Integer.MAX_VALUE )
+            {
+                throw new IOException( "File ends at line " + line + ", before line " + lines );
+            }
+            ByteBuffer range = buffer.duplicate();
+            range.position( start ).limit( end );
+            write( output, range );
+            buffer.position( end );
+        }
+
+        /**
+         * Consumes the next line if it has the given text.
+         */
+        private boolean skip(String text)
+        {
+            int start = buffer.position();
+            if ( start >= buffer.limit() )
+            {
+                return false;
+            }
+            int end = lineEnd( start );
+            int textEnd = end;
+            if ( textEnd > start && buffer.get( textEnd - 1 ) == '\n' )
+            {
+                textEnd--;
+                if ( textEnd > start && buffer.get( textEnd - 1 ) == '\r' )
+                {
+                    textEnd--;
+                }
+            }
+            byte[] expected = text.getBytes( Charsets.UTF_8 );
+            if ( expected.length != textEnd - start )
+            {
+                return false;
+            }
+            for ( int i = 0; i < expected.length; i++ )
+            {
+                if ( buffer.get( start + i ) != expected[i] )
+                {
+                    return false;
+                }
+            }
+            buffer.position( end );
+            line++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Extracts a zip file on several threads. The central directory is read
+ * directly so every entry's data can be located with positional reads on a
+ * single shared channel. Stored entries are copied with a channel transfer,
+ * deflated ones are inflated straight from the channel. Archives this reader
+ * does not understand, such as zip64 ones, are refused so the caller can fall
+ * back to java.util.zip.
+ */
+@RequiredArgsConstructor
+public class ZipExtractor
+{
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private final File zipFile;
+
+    @Data
+    private static class Entry
+    {
+
+        private final String name;
+        private final int method;
+        private final long compressedSize;
+        private final long size;
+        private final long headerOffset;
+    }
+
+    /**
+     * Extracts all entries accepted by the filter into the target folder.
+     *
+     * @return false if the archive uses features this reader does not support
+     */
+    public boolean extract(File targetFolder, Predicate<String> filter, int threads) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( zipFile, "r" );
+        try
+        {
+            final FileChannel channel = raf.getChannel();
+            List<Entry> entries = readCentralDirectory( channel );
+            if ( entries == null )
+            {
+                return false;
+            }
+
+            // Create every directory up front, workers then only ever write files
+            final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+            TreeSet<File> directories = new TreeSet<File>();
+            directories.add( targetFolder );
+            long totalBytes = 0;
+            for ( Entry entry : entries )
+            {
+                if ( filter != null && !filter.apply( entry.getName() ) )
+                {
+                    continue;
+                }
+                File outFile = new File( targetFolder, entry.getName() );
+                if ( entry.getName().endsWith( "/" ) )
+                {
+                    directories.add( outFile );
+                    continue;
+                }
+                directories.add( outFile.getParentFile() );
+                queue.add( entry );
+                totalBytes += entry.getSize();
+            }
+            for ( File directory : directories )
+            {
+                directory.mkdirs();
+            }
+
+            final File target = targetFolder;
+            final Progress progress = new Progress( zipFile.getName(), queue.size(), totalBytes );
+            ExecutorService executor = Executors.newFixedThreadPool( threads, new ThreadFactoryBuilder().setNameFormat( "Unzip Worker #%d" ).build() );
+            try
+            {
+                List<Future<?>> workers = new ArrayList<Future<?>>();
+                for ( int i = 0; i < threads; i++ )
+                {
+                    workers.add( executor.submit( new Callable<Void>()
+                    {
+                        @Override
+                        public Void call() throws Exception
+                        {
+                            Entry entry;
+                            while ( ( entry = queue.poll() ) != null )
+                            {
+                                extract( channel, entry, new File( target, entry.getName() ) );
+                                progress.done( entry.getSize() );
+                            }
+                            return null;
+                        }
+                    } ) );
+                }
+                for ( Future<?> worker : workers )
+                {
+                    worker.get();
+                }
+            } catch ( ExecutionException ex )
+            {
+                Throwables.propagateIfPossible( ex.getCause(), IOException.class );
+                throw new IOException( "Could not extract " + zipFile, ex.getCause() );
+            } catch ( InterruptedException ex )
+            {
+                throw new InterruptedIOException( "Interrupted while extracting " + zipFile );
+            } finally
+            {
+                executor.shutdownNow();
+            }
+            progress.finish();
+            return true;
+        } finally
+        {
+            raf.close();
+        }
+    }
+
+    private static void extract(FileChannel channel, Entry entry, File outFile) throws IOException
+    {
+        ByteBuffer header = read( channel, entry.getHeaderOffset(), 30 );
+        if ( header.getInt( 0 ) != LOC_SIGNATURE )
+        {
+            throw new IOException( "Bad local header for " + entry.getName() );
+        }
+        long dataOffset = entry.getHeaderOffset() + 30 + ( header.getShort( 26 ) & 0xFFFF ) + ( header.getShort( 28 ) & 0xFFFF );
+
+        FileOutputStream out = new FileOutputStream( outFile );
+        try
+        {
+            if ( entry.getMethod() == ZipEntry.STORED )
+            {
+                FileChannel outChannel = out.getChannel();
+                long position = 0;
+                while ( position < entry.getSize() )
+                {
+                    long transferred = channel.transferTo( dataOffset + position, entry.getSize() - position, outChannel );
+                    if ( transferred == 0 )
+                    {
+                        // Some channels give up short of the end instead of failing, copy the rest by hand
+                        copy( channel, dataOffset + position, entry.getSize() - position, out );
+                        break;
+                    }
+                    position += transferred;
+                }
+            } else
+            {
+                Inflater inflater = new Inflater( true );
+                try
+                {
+                    InputStream in = new InflaterInputStream( new RegionInputStream( channel, dataOffset, entry.getCompressedSize() ), inflater, 65536 );
+                    byte[] buffer = new byte[ 65536 ];
+                    int read;
+                    while ( ( read = in.read( buffer ) ) != -1 )
+                    {
+                        out.write( buffer, 0, read );
+                    }
+                } finally
+                {
+                    inflater.end();
+                }
+            }
+        } finally
+        {
+            out.close();
+        }
+    }
+
+    private static void copy(FileChannel channel, long position, long length, OutputStream out) throws IOException
+    {
+        byte[] buffer = new byte[ 65536 ];
+        while ( length > 0 )
+        {
+            int read = channel.read( ByteBuffer.wrap( buffer, 0, (int) Math.min( buffer.length, length ) ), position );
+            if ( read == -1 )
+            {
+                throw new IOException( "Unexpected end of zip file" );
+            }
+            out.write( buffer, 0, read );
+            position += read;
+            length -= read;
+        }
+    }
+
+    /**
+     * Reads the entries from the central directory, or returns null if the
+     * archive is not a plain, non zip64 archive with stored and deflated
+     * entries only.
+     */
+    private static List<Entry> readCentralDirectory(FileChannel channel) throws IOException
+    {
+        long length = channel.size();
+        int tailLength = (int) Math.min( length, 22 + 65535 );
+        ByteBuffer tail = read( channel, length - tailLength, tailLength );
+
+        int eocd = -1;
+        for ( int i = tailLength - 22; i >= 0; i-- )
+        {
+            if ( tail.getInt( i ) == EOCD_SIGNATURE )
+            {
+                eocd = i;
+                break;
+            }
+        }
+        if ( eocd == -1 )
+        {
+            return null;
+        }
+
+        int count = tail.getShort( eocd + 10 ) & 0xFFFF;
+        long cenSize = tail.getInt( eocd + 12 ) & 0xFFFFFFFFL;
+        long cenOffset = tail.getInt( eocd + 16 ) & 0xFFFFFFFFL;
+        if ( count == 0xFFFF || cenOffset == 0xFFFFFFFFL || cenOffset + cenSize > length )
+        {
+            return null;
+        }
+
+        ByteBuffer cen = read( channel, cenOffset, (int) cenSize );
+        List<Entry> entries = new ArrayList<Entry>( count );
+        int pos = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            if ( cen.getInt( pos ) != CEN_SIGNATURE )
+            {
+                return null;
+            }
+            int method = cen.getShort( pos + 10 ) & 0xFFFF;
+            long compressedSize = cen.getInt( pos + 20 ) & 0xFFFFFFFFL;
+            long size = cen.getInt( pos + 24 ) & 0xFFFFFFFFL;
+            int nameLength = cen.getShort( pos + 28 ) & 0xFFFF;
+            int extraLength = cen.getShort( pos + 30 ) & 0xFFFF;
+            int commentLength = cen.getShort( pos + 32 ) & 0xFFFF;
+            long headerOffset = cen.getInt( pos + 42 ) & 0xFFFFFFFFL;
+            if ( ( method != ZipEntry.STORED && method != ZipEntry.DEFLATED ) || compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || headerOffset == 0xFFFFFFFFL )
+            {
+                return null;
+            }
+
+            byte[] name = new byte[ nameLength ];
+            cen.position( pos + 46 );
+            cen.get( name );
+            entries.add( new Entry( new String( name, Charsets.UTF_8 ), method, compressedSize, size, headerOffset ) );
+
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( length ).order( ByteOrder.LITTLE_ENDIAN );
+        while ( buffer.hasRemaining() )
+        {
+            if ( channel.read( buffer, position + buffer.position() ) == -1 )
+            {
+                throw new IOException( "Unexpected end of zip file" );
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Positional view of part of the channel, safe to use from several threads
+     * at once. Ends with a single padding byte, which the inflater requires
+     * in nowrap mode.
+     */
+    private static class RegionInputStream extends InputStream
+    {
+
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+        private boolean padded;
+
+        public RegionInputStream(FileChannel channel, long position, long length)
+        {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] single = new byte[ 1 ];
+            return ( read( single, 0, 1 ) == -1 ) ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if ( remaining == 0 )
+            {
+                if ( padded )
+                {
+                    return -1;
+                }
+                padded = true;
+                b[off] = 0;
+                return 1;
+            }
+            int read = channel.read( ByteBuffer.wrap( b, off, (int) Math.min( len, remaining ) ), position );
+            if ( read == -1 )
+            {
+                throw new IOException( "Unexpected end of zip file" );
+            }
+            position += read;
+            remaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * Prints a summary of the extraction at most once a second instead of a
+     * line for every entry.
+     */
+    private static class Progress
+    {
+
+        private final String name;
+        private final int totalEntries;
+        private final long totalBytes;
+        private final AtomicInteger entries = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong lastReport = new AtomicLong( System.currentTimeMillis() );
+
+        public Progress(String name, int totalEntries, long totalBytes)
+        {
+            this.name = name;
+            this.totalEntries = totalEntries;
+            this.totalBytes = totalBytes;
+        }
+
+        public void done(long size)
+        {
+            int doneEntries = entries.incrementAndGet();
+            long doneBytes = bytes.addAndGet( size );
+
+            long now = System.currentTimeMillis();
+            long last = lastReport.get();
+            if ( now - last >= 1000 && lastReport.compareAndSet( last, now ) )
+            {
+                System.out.println( "Extracting " + name + ": " + doneEntries + "/" + totalEntries + " files, " + ( doneBytes * 100 / Math.max( 1, totalBytes ) ) + "%" );
+            }
+        }
+
+        public void finish()
+        {
+            System.out.println( "Extracted " + entries + " files (" + bytes.get() / 1024 + " KiB) from " + name );
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.spigotmc.builder;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DownloadTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final byte[] content = new byte[ 256 * 1024 ];
+    private final List<String> ranges = new ArrayList<String>();
+    private HttpServer server;
+    private boolean honourRange;
+    private boolean cutFirst;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        new Random( 0 ).nextBytes( content );
+        server = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+        server.createContext( "/file.jar", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                serve( exchange );
+            }
+        } );
+        server.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop( 0 );
+    }
+
+    @Test
+    public void resumesInterruptedDownload() throws Exception
+    {
+        honourRange = true;
+        cutFirst = true;
+        File target = new File( folder.getRoot(), "file.jar" );
+
+        String hash = Builder.download( url(), target, md5() );
+
+        Assert.assertEquals( md5(), hash );
+        Assert.assertTrue( Arrays.equals( content, Files.toByteArray( target ) ) );
+        Assert.assertFalse( new File( target.getPath() + ".part" ).exists() );
+        Assert.assertEquals( 2, ranges.size() );
+        Assert.assertNull( ranges.get( 0 ) );
+        Assert.assertTrue( ranges.get( 1 ), ranges.get( 1 ) != null && !ranges.get( 1 ).equals( "bytes=0-" ) );
+    }
+
+    @Test
+    public void restartsWhenRangeIsIgnored() throws Exception
+    {
+        File target = new File( folder.getRoot(), "file.jar" );
+        byte[] stale = new byte[ 1000 ];
+        new Random( 1 ).nextBytes( stale );
+        Files.write( stale, new File( target.getPath() + ".part" ) );
+
+        String hash = Builder.download( url(), target, md5() );
+
+        Assert.assertEquals( md5(), hash );
+        Assert.assertTrue( Arrays.equals( content, Files.toByteArray( target ) ) );
+        Assert.assertEquals( Arrays.asList( "bytes=1000-" ), ranges );
+    }
+
+    private String url()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/file.jar";
+    }
+
+    private String md5()
+    {
+        return Hashing.md5().hashBytes( content ).toString();
+    }
+
+    /**
+     * Serves the content, honouring a range only if asked to and cutting the
+     * first response off half way if asked to.
+     */
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        String range = exchange.getRequestHeaders().getFirst( "Range" );
+        boolean first;
+        synchronized ( ranges )
+        {
+            first = ranges.isEmpty();
+            ranges.add( range );
+        }
+
+        int offset = 0;
+        if ( honourRange && range != null )
+        {
+            offset = Integer.parseInt( range.substring( "bytes=".length(), range.length() - 1 ) );
+            exchange.getResponseHeaders().set( "Content-Range", "bytes " + offset + "-" + ( content.length - 1 ) + "/" + content.length );
+            exchange.sendResponseHeaders( 206, content.length - offset );
+        } else
+        {
+            exchange.sendResponseHeaders( 200, content.length );
+        }
+
+        OutputStream out = exchange.getResponseBody();
+        try
+        {
+            if ( cutFirst && first )
+            {
+                out.write( content, 0, content.length / 2 );
+                out.flush();
+            } else
+            {
+                out.write( content, offset, content.length - offset );
+            }
+        } finally
+        {
+            // Closing with bytes missing drops the connection
+            exchange.close();
+        }
+    }
+}
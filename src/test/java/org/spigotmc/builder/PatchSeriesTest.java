@@ -0,0 +1,208 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import java.io.File;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PatchSeriesTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File base;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        base = folder.getRoot();
+        File upstream = new File( base, "Upstream" );
+        Git git = Git.init().setDirectory( upstream ).call();
+        try
+        {
+            Files.write( "one\ntwo\nthree  four\n", new File( upstream, "a.txt" ), Charsets.UTF_8 );
+            Files.write( "*.log\n", new File( upstream, ".gitignore" ), Charsets.UTF_8 );
+            git.add().addFilepattern( "a.txt" ).addFilepattern( ".gitignore" ).call();
+            git.commit().setMessage( "Initial" ).call();
+        } finally
+        {
+            git.close();
+        }
+        new File( base, "Upstream-Patches" ).mkdir();
+    }
+
+    @Test
+    public void commitsIgnoredFiles() throws Exception
+    {
+        patch( "0001-Add-notes.patch", "Add notes",
+                "diff --git a/notes.log b/notes.log",
+                "new file mode 100644",
+                "index 0000000..0000003",
+                "--- /dev/null",
+                "+++ b/notes.log",
+                "@@ -0,0 +1 @@",
+                "+kept" );
+
+        new PatchSeries( base, "Upstream", "Target", "master" ).apply();
+
+        Repository repository = Git.open( new File( base, "Target" ) ).getRepository();
+        try
+        {
+            RevWalk walk = new RevWalk( repository );
+            RevCommit head = walk.parseCommit( repository.resolve( Constants.HEAD ) );
+            Assert.assertEquals( "Add notes\n", head.getFullMessage() );
+            TreeWalk notes = TreeWalk.forPath( repository, "notes.log", head.getTree() );
+            Assert.assertNotNull( "notes.log was not committed", notes );
+            Assert.assertEquals( "kept\n", new String( repository.open( notes.getObjectId( 0 ) ).getBytes(), Charsets.UTF_8 ) );
+            notes.release();
+            walk.release();
+        } finally
+        {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void rejectsWhitespaceDrift() throws Exception
+    {
+        // The context has one space where the file has two, which git am --ignore-whitespace would accept
+        patch( "0001-Change-two.patch", "Change two",
+                "diff --git a/a.txt b/a.txt",
+                "index 0000001..0000002 100644",
+                "--- a/a.txt",
+                "+++ b/a.txt",
+                "@@ -1,3 +1,3 @@",
+                " one",
+                "-two",
+                "+TWO",
+                " three four" );
+        // Cloned up front with an identity, so only the white space can stop git am
+        File target = target();
+
+        try
+        {
+            new PatchSeries( base, "Upstream", "Target", "master" ).apply();
+            Assert.fail( "A patch whose context differs in white space applied" );
+        } catch ( Exception ex )
+        {
+            // Expected
+        }
+        Assert.assertEquals( "one\ntwo\nthree  four\n", Files.toString( new File( target, "a.txt" ), Charsets.UTF_8 ) );
+    }
+
+    @Test
+    public void fallsBackAfterPartialPatch() throws Exception
+    {
+        // notes.txt is written before the hunk, one line off, stops the patch in process; git am finds it
+        patch( "0001-Add-notes.patch", "Add notes",
+                "diff --git a/notes.txt b/notes.txt",
+                "new file mode 100644",
+                "index 0000000..0000003",
+                "--- /dev/null",
+                "+++ b/notes.txt",
+                "@@ -0,0 +1 @@",
+                "+kept",
+                "diff --git a/a.txt b/a.txt",
+                "index 0000001..0000002 100644",
+                "--- a/a.txt",
+                "+++ b/a.txt",
+                "@@ -2,3 +2,3 @@",
+                " one",
+                "-two",
+                "+TWO",
+                " three  four" );
+        File target = target();
+
+        new PatchSeries( base, "Upstream", "Target", "master" ).apply();
+
+        Assert.assertEquals( "kept\n", Files.toString( new File( target, "notes.txt" ), Charsets.UTF_8 ) );
+        Assert.assertEquals( "one\nTWO\nthree  four\n", Files.toString( new File( target, "a.txt" ), Charsets.UTF_8 ) );
+    }
+
+    @Test
+    public void keepsLineEndingsOfAddedFiles() throws Exception
+    {
+        patch( "0001-Add-script.patch", "Add script",
+                "diff --git a/run.bat b/run.bat",
+                "new file mode 100644",
+                "index 0000000..0000003",
+                "--- /dev/null",
+                "+++ b/run.bat",
+                "@@ -0,0 +1,2 @@",
+                "+@echo off\r",
+                "+java -jar server.jar\r" );
+
+        new PatchSeries( base, "Upstream", "Target", "master" ).apply();
+
+        Assert.assertEquals( "@echo off\r\njava -jar server.jar\r\n", Files.toString( new File( base, "Target/run.bat" ), Charsets.UTF_8 ) );
+    }
+
+    @Test
+    public void rejectsDeletingChangedFile() throws Exception
+    {
+        patch( "0001-Remove-a.patch", "Remove a",
+                "diff --git a/a.txt b/a.txt",
+                "deleted file mode 100644",
+                "index 0000001..0000000",
+                "--- a/a.txt",
+                "+++ /dev/null",
+                "@@ -1,3 +0,0 @@",
+                "-one",
+                "-TWO",
+                "-three  four" );
+        File target = target();
+
+        try
+        {
+            new PatchSeries( base, "Upstream", "Target", "master" ).apply();
+            Assert.fail( "A file other than the one the patch removes was deleted" );
+        } catch ( Exception ex )
+        {
+            // Expected
+        }
+        Assert.assertEquals( "one\ntwo\nthree  four\n", Files.toString( new File( target, "a.txt" ), Charsets.UTF_8 ) );
+    }
+
+    /**
+     * Clones the target with an identity for git am to commit with.
+     */
+    private File target() throws Exception
+    {
+        File target = new File( base, "Target" );
+        Git git = Git.cloneRepository().setURI( "file://" + new File( base, "Upstream" ).getAbsolutePath() ).setDirectory( target ).call();
+        try
+        {
+            git.getRepository().getConfig().setString( "user", null, "name", "Test" );
+            git.getRepository().getConfig().setString( "user", null, "email", "test@example.com" );
+            git.getRepository().getConfig().save();
+        } finally
+        {
+            git.close();
+        }
+        return target;
+    }
+
+    private void patch(String name, String subject, String... diff) throws Exception
+    {
+        String header = Joiner.on( '\n' ).join(
+                "From 1111111111111111111111111111111111111111 Mon Sep 17 00:00:00 2001",
+                "From: Test <test@example.com>",
+                "Date: Sat, 1 Jan 2022 00:00:00 +0000",
+                "Subject: [PATCH] " + subject,
+                "",
+                "---",
+                "" );
+        Files.write( header + Joiner.on( '\n' ).join( diff ) + "\n-- \n2.1.0\n\n", new File( base, "Upstream-Patches/" + name ), Charsets.UTF_8 );
+    }
+}
@@ -0,0 +1,133 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.RefSpec;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RepositorySyncTest
+{
+
+    private static final String[] NAMES =
+    {
+        "Bukkit", "CraftBukkit", "Migot", "BuildData"
+    };
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void clonesAndFetchesConcurrently() throws Exception
+    {
+        Map<String, File> remotes = new LinkedHashMap<String, File>();
+        Map<String, ObjectId> heads = new LinkedHashMap<String, ObjectId>();
+        RepositorySync sync = new RepositorySync( NAMES.length );
+        for ( String name : NAMES )
+        {
+            File remote = remote( name );
+            remotes.put( name, remote );
+            heads.put( name, commit( remote, name + " 1" ) );
+            sync.clone( url( remote ), checkout( name ) );
+        }
+        sync.run();
+        for ( String name : NAMES )
+        {
+            Assert.assertEquals( name, heads.get( name ), head( checkout( name ) ) );
+        }
+
+        RepositorySync pull = new RepositorySync( NAMES.length );
+        for ( String name : NAMES )
+        {
+            heads.put( name, commit( remotes.get( name ), name + " 2" ) );
+            pull.pull( Git.open( checkout( name ) ), "master" );
+        }
+        pull.run();
+        for ( String name : NAMES )
+        {
+            Assert.assertEquals( name, heads.get( name ), head( checkout( name ) ) );
+        }
+    }
+
+    @Test
+    public void reportsFailures() throws Exception
+    {
+        File remote = remote( "Bukkit" );
+        ObjectId head = commit( remote, "Bukkit 1" );
+        File missing = new File( folder.getRoot(), "missing.git" );
+
+        RepositorySync sync = new RepositorySync( 2 );
+        sync.clone( url( remote ), checkout( "Bukkit" ) );
+        sync.clone( url( missing ), checkout( "CraftBukkit" ) );
+        try
+        {
+            sync.run();
+            Assert.fail( "Cloning a missing repository did not fail" );
+        } catch ( Exception ex )
+        {
+            Assert.assertTrue( ex.getMessage(), ex.getMessage().contains( "1 of 2" ) );
+            Assert.assertTrue( ex.getMessage(), ex.getMessage().contains( "CraftBukkit" ) );
+        }
+
+        // The other clone still completes, the failed one leaves nothing behind
+        Assert.assertEquals( head, head( checkout( "Bukkit" ) ) );
+        Assert.assertFalse( checkout( "CraftBukkit" ).exists() );
+    }
+
+    private File remote(String name) throws Exception
+    {
+        File remote = new File( folder.getRoot(), "remotes/" + name + ".git" );
+        Git.init().setBare( true ).setDirectory( remote ).call().close();
+        return remote;
+    }
+
+    private File checkout(String name)
+    {
+        return new File( folder.getRoot(), "checkouts/" + name );
+    }
+
+    private static String url(File remote)
+    {
+        return "file://" + remote.getAbsolutePath();
+    }
+
+    /**
+     * Commits a change to the bare repository through a work tree next to
+     * it.
+     */
+    private ObjectId commit(File remote, String message) throws Exception
+    {
+        File work = new File( folder.getRoot(), "work/" + remote.getName() );
+        Git git = ( work.exists() ) ? Git.open( work ) : Git.init().setDirectory( work ).call();
+        try
+        {
+            Files.write( message, new File( work, "file.txt" ), Charsets.UTF_8 );
+            git.add().addFilepattern( "file.txt" ).call();
+            ObjectId commit = git.commit().setMessage( message ).call();
+            git.push().setRemote( url( remote ) ).setRefSpecs( new RefSpec( "refs/heads/master:refs/heads/master" ) ).call();
+            return commit;
+        } finally
+        {
+            git.close();
+        }
+    }
+
+    private static ObjectId head(File checkout) throws Exception
+    {
+        Git git = Git.open( checkout );
+        try
+        {
+            return git.getRepository().resolve( Constants.HEAD );
+        } finally
+        {
+            git.close();
+        }
+    }
+}
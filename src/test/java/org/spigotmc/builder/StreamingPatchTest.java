@@ -0,0 +1,124 @@
+package org.spigotmc.builder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import difflib.DiffUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamingPatchTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void matchesDiffUtils() throws Exception
+    {
+        for ( int seed = 0; seed < 30; seed++ )
+        {
+            Random random = new Random( seed );
+            List<String> source = source( random, 200 + random.nextInt( 2000 ) );
+            List<String> patch = patch( random, source );
+            File clean = write( folder.newFile(), source );
+            File patchFile = write( folder.newFile(), patch );
+            File out = folder.newFile();
+
+            new StreamingPatch( patchFile ).apply( clean, out );
+
+            List<?> expected = DiffUtils.patch( source, DiffUtils.parseUnifiedDiff( patch ) );
+            Assert.assertEquals( "Seed " + seed, Joiner.on( '\n' ).join( expected ) + "\n", Files.toString( out, Charsets.UTF_8 ) );
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMismatchedContext() throws Exception
+    {
+        File clean = write( folder.newFile(), source( new Random( 0 ), 100 ) );
+        File patchFile = write( folder.newFile(), Arrays.asList( "--- a", "+++ b", "@@ -2,2 +2,2 @@", " nope", "-x", "+y" ) );
+        new StreamingPatch( patchFile ).apply( clean, folder.newFile() );
+    }
+
+    @Test
+    public void honoursNoNewlineMarker() throws Exception
+    {
+        Assert.assertEquals( "a\nb\nC", apply( "a\nb\nc\n", "@@ -2,2 +2,2 @@", " b", "-c", "+C", "\\ No newline at end of file" ) );
+        Assert.assertEquals( "a\nb\nC\n", apply( "a\nb\nc", "@@ -2,2 +2,2 @@", " b", "-c", "\\ No newline at end of file", "+C" ) );
+        Assert.assertEquals( "a\nB\nc", apply( "a\nb\nc", "@@ -1,3 +1,3 @@", " a", "-b", "+B", " c", "\\ No newline at end of file" ) );
+        // Untouched by any hunk, the end of the file stays without a new line
+        Assert.assertEquals( "A\nb\nc", apply( "a\nb\nc", "@@ -1,2 +1,2 @@", "-a", "+A", " b" ) );
+    }
+
+    private String apply(String clean, String... patch) throws IOException
+    {
+        File cleanFile = folder.newFile();
+        Files.write( clean, cleanFile, Charsets.UTF_8 );
+        File out = folder.newFile();
+        new StreamingPatch( write( folder.newFile(), Arrays.asList( patch ) ) ).apply( cleanFile, out );
+        return Files.toString( out, Charsets.UTF_8 );
+    }
+
+    private static List<String> source(Random random, int lines)
+    {
+        List<String> source = new ArrayList<String>();
+        source.add( "package net.minecraft.server;" );
+        while ( source.size() < lines )
+        {
+            source.add( "        var1 += this.field" + random.nextInt( 100 ) + " * " + random.nextInt( 1000 ) + "; // ä" );
+        }
+        return source;
+    }
+
+    /**
+     * Hunks with three lines of context on either side, replacing, inserting
+     * or removing a few lines each.
+     */
+    private static List<String> patch(Random random, List<String> source)
+    {
+        List<String> patch = new ArrayList<String>();
+        patch.add( "--- a/Generated.java" );
+        patch.add( "+++ b/Generated.java" );
+        int offset = 0;
+        int start = random.nextInt( 5 );
+        while ( start + 9 < source.size() )
+        {
+            int removed = random.nextInt( 3 );
+            int added = random.nextInt( 3 );
+            patch.add( "@@ -" + ( start + 1 ) + "," + ( 6 + removed ) + " +" + ( start + 1 + offset ) + "," + ( 6 + added ) + " @@" );
+            for ( int i = 0; i < 3; i++ )
+            {
+                patch.add( " " + source.get( start + i ) );
+            }
+            for ( int i = 0; i < removed; i++ )
+            {
+                patch.add( "-" + source.get( start + 3 + i ) );
+            }
+            for ( int i = 0; i < added; i++ )
+            {
+                patch.add( "+        // CraftBukkit " + random.nextInt() );
+            }
+            for ( int i = 0; i < 3; i++ )
+            {
+                patch.add( " " + source.get( start + 3 + removed + i ) );
+            }
+            offset += added - removed;
+            start += 6 + removed + random.nextInt( 100 );
+        }
+        return patch;
+    }
+
+    private static File write(File file, List<String> lines) throws IOException
+    {
+        Files.write( Joiner.on( '\n' ).join( lines ) + "\n", file, Charsets.UTF_8 );
+        return file;
+    }
+}